@@ -0,0 +1,74 @@
+/**
+ * When each request of an open model load test is due, for a target rate that
+ * may ramp up from 0 and step through several levels, eg. a 10 second ramp to
+ * 100/s, then 200/s and 400/s for 30 seconds each:
+ *
+ *   new ArrivalSchedule(new double[] { 100, 200, 400 }, 10, 30)
+ *
+ * The last rate holds for as long as requests are taken. Send times are exact
+ * rather than accumulated one interval at a time, so rounding doesn't drift
+ * the rate over a long run.
+ */
+public class ArrivalSchedule {
+    // Start (seconds), length (seconds) and rates at either end (per second) of every segment
+    private final double[] starts;
+    private final double[] lengths;
+    private final double[] fromRates;
+    private final double[] toRates;
+    // Requests due before each segment starts
+    private final double[] counts;
+
+    /**
+     * @param rates       Requests per second of each step
+     * @param rampSeconds Time to climb linearly from 0 to the first rate, 0 to start at it
+     * @param stepSeconds How long each rate but the last holds
+     */
+    public ArrivalSchedule(final double[] rates, final double rampSeconds, final double stepSeconds) {
+        final int ramp = rampSeconds > 0 ? 1 : 0;
+        final int segments = ramp + rates.length;
+
+        this.starts = new double[segments];
+        this.lengths = new double[segments];
+        this.fromRates = new double[segments];
+        this.toRates = new double[segments];
+        this.counts = new double[segments];
+
+        if (ramp > 0) {
+            this.lengths[0] = rampSeconds;
+            this.toRates[0] = rates[0];
+        }
+
+        for (int i = 0; i < rates.length; i++) {
+            final int segment = ramp + i;
+            this.lengths[segment] = i < rates.length - 1 ? stepSeconds : Double.POSITIVE_INFINITY;
+            this.fromRates[segment] = rates[i];
+            this.toRates[segment] = rates[i];
+        }
+
+        for (int i = 1; i < segments; i++) {
+            this.starts[i] = this.starts[i - 1] + this.lengths[i - 1];
+            this.counts[i] = this.counts[i - 1] + (this.fromRates[i - 1] + this.toRates[i - 1]) / 2 * this.lengths[i - 1];
+        }
+    }
+
+    /**
+     * @param n Number of the request, from 0
+     * @return When it's due, in nanoseconds from the start of the schedule
+     */
+    public long offsetNanos(final long n) {
+        int segment = 0;
+        while (segment < this.counts.length - 1 && this.counts[segment + 1] <= n) {
+            segment++;
+        }
+
+        // Requests due so far grow as from * t + (to - from) * t^2 / 2length within a segment, solve for t
+        final double due = n - this.counts[segment];
+        final double from = this.fromRates[segment];
+        final double slope = (this.toRates[segment] - from) / this.lengths[segment];
+        final double t = slope == 0
+            ? due / from
+            : (Math.sqrt(from * from + 2 * slope * due) - from) / slope;
+
+        return (long) ((this.starts[segment] + t) * 1e9);
+    }
+}
@@ -0,0 +1,576 @@
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import constants.Argument;
+import constants.Method;
+
+/**
+ * Runs every httpc command in a file concurrently within this one process,
+ * eg. 'httpc batch --concurrency 100 curl.txt'
+ *
+ * With '--adaptive', a HostLimiter keeps the requests to each host near what
+ * the host can take, and with '--retries', GETs the host failed or turned away
+ * (429/503) are sent again after a jittered, exponentially growing delay, or
+ * as long as its Retry-After asks. Only a connection refused, reset or timed
+ * out counts as the host failing: a name that doesn't resolve, a failed TLS
+ * handshake or an unreadable file fails the line at once and leaves its limit
+ * alone.
+ */
+public class BatchRunner {
+    private static final int DEFAULT_CONCURRENCY = 64;
+    private static final String[] COMMAND_PREFIXES = { "java Httpc ", "httpc " };
+    private static final long RETRY_BASE_MILLIS = 100;
+    private static final long RETRY_MAX_MILLIS = 5000;
+    // Longest Retry-After honoured, a batch shouldn't stall on one host for longer
+    private static final long RETRY_AFTER_MAX_MILLIS = 60_000;
+
+    private final String[] args;
+    private String file = null;
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private int pipelineDepth = 1;
+    private String metricsFile = null;
+    private boolean adaptive = false;
+    private int maxQueued = -1;
+    private int retries = 0;
+
+    private ExecutorService executor = null;
+    private HostLimiter limiter = null;
+    private final AtomicInteger retried = new AtomicInteger();
+
+    public BatchRunner(final String[] args) {
+        this.args = args;
+        evaluate();
+    }
+
+    /**
+     * Validate the batch arguments: 'batch [--concurrency n] [--pipeline n] [--adaptive [--max-queue n]]
+     * [--retries n] [--metrics file] file'
+     */
+    private void evaluate() {
+        for (int i = 1; i < args.length; i++) {
+            final Argument currentArg = Utils.parse(Argument.class, args[i]);
+
+            if (currentArg == Argument.CONCURRENCY && i + 1 < args.length) {
+                try {
+                    this.concurrency = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    Utils.printHelpAndExit(Method.BATCH);
+                }
+                continue;
+            }
+
+            if (currentArg == Argument.PIPELINE && i + 1 < args.length) {
+                try {
+                    this.pipelineDepth = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    Utils.printHelpAndExit(Method.BATCH);
+                }
+                continue;
+            }
+
+            if (currentArg == Argument.METRICS && i + 1 < args.length) {
+                this.metricsFile = args[++i];
+                continue;
+            }
+
+            if (currentArg == Argument.ADAPTIVE) {
+                this.adaptive = true;
+                continue;
+            }
+
+            if ((currentArg == Argument.MAX_QUEUE || currentArg == Argument.RETRIES) && i + 1 < args.length) {
+                try {
+                    final int value = Integer.parseInt(args[++i]);
+                    if (currentArg == Argument.MAX_QUEUE) {
+                        this.maxQueued = value;
+                    } else {
+                        this.retries = value;
+                    }
+                } catch (NumberFormatException e) {
+                    Utils.printHelpAndExit(Method.BATCH);
+                }
+                continue;
+            }
+
+            if (currentArg != null || this.file != null) {
+                Utils.printHelpAndExit(Method.BATCH);
+            }
+
+            this.file = args[i];
+        }
+
+        if (this.file == null || this.concurrency < 1 || this.pipelineDepth < 1 || this.retries < 0) {
+            Utils.printHelpAndExit(Method.BATCH);
+        }
+
+        // A queue bound only means something for the limiter
+        if (this.maxQueued != -1 && (!this.adaptive || this.maxQueued < 0)) {
+            Utils.printHelpAndExit(Method.BATCH);
+        }
+    }
+
+    /**
+     * Execute every command in the file, with at most 'concurrency' requests in
+     * flight, and wait for all of them to finish. With pipelining, GETs to the
+     * same host are gathered into groups of 'pipelineDepth' that each share one
+     * connection and count as a single request in flight.
+     *
+     * Every other blocking request waits for its host's limit when it's
+     * adaptive, while holding its place among the 'concurrency' requests in
+     * flight, so the queues never hold more than that either.
+     */
+    public void run() {
+        final List<String[]> commands = readCommands();
+        final Semaphore permits = new Semaphore(this.concurrency);
+        final AtomicInteger failures = new AtomicInteger();
+        final ExecutorService executor = Utils.newRequestExecutor();
+        final Map<String, PipelineGroup> pipelines = new HashMap<>();
+
+        this.executor = executor;
+        if (this.adaptive) {
+            this.limiter = new HostLimiter(this.concurrency, this.maxQueued >= 0 ? this.maxQueued : this.concurrency);
+        }
+
+        // Long runs are watched while they go, over JMX or through the exported file
+        Metrics.getDefault().registerMBean();
+        final PrometheusExporter exporter = PrometheusExporter.start(this.metricsFile);
+
+        try {
+            for (int i = 0; i < commands.size(); i++) {
+                final String[] command = commands.get(i);
+                final int number = i + 1;
+
+                // Block here rather than queueing, so only 'concurrency' tasks ever exist at once
+                permits.acquireUninterruptibly();
+
+                final Request request;
+                try {
+                    request = new CommandProcessor(command).getRequest();
+                } catch (HttpcException e) {
+                    fail(number, e, failures);
+                    permits.release();
+                    continue;
+                }
+
+                if (request.getOutputFile() == null) {
+                    request.setOutputFile(numberedOutput(number));
+                }
+
+                // Non-blocking requests are driven by the engine's event loops, no thread waits on them
+                if (request.isNonBlocking()) {
+                    sendAsync(number, request, permits, failures);
+                    continue;
+                }
+
+                if (isPipelined(request)) {
+                    final String route = route(request) + " " + request.getResolve(request.getHost(), request.getPort());
+                    final PipelineGroup group = pipelines.computeIfAbsent(route, k -> new PipelineGroup());
+                    group.add(number, request);
+
+                    // The group only goes out once it's full, until then it doesn't hold a permit
+                    if (group.size() < this.pipelineDepth) {
+                        permits.release();
+                    } else {
+                        pipelines.remove(route);
+                        executor.execute(() -> sendPipeline(group, permits, failures));
+                    }
+                    continue;
+                }
+
+                send(number, request, permits, failures, 0);
+            }
+
+            // Partly filled groups go out as they are
+            for (PipelineGroup group : pipelines.values()) {
+                permits.acquireUninterruptibly();
+                executor.execute(() -> sendPipeline(group, permits, failures));
+            }
+
+            // Every permit is back once the last asynchronous request has completed
+            permits.acquireUninterruptibly(this.concurrency);
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            ConnectionPool.getDefault().closeIdle();
+            if (exporter != null) {
+                exporter.stop();
+            }
+        }
+
+        System.out.println(String.format("%d requests, %d failed", commands.size(), failures.get())
+            + (this.retries > 0 ? String.format(", %d retries", this.retried.get()) : ""));
+
+        if (this.limiter != null) {
+            for (HostLimiter.Host host : this.limiter.getHosts()) {
+                System.out.println(String.format("  %s: limit %.1f, %d decreases, up to %d waiting, %d rejected",
+                    host.getRoute(), host.getLimit(), host.getDecreases(), host.getPeakWaiting(), host.getRejected()));
+            }
+        }
+    }
+
+    /**
+     * Send a blocking request from the executor, once its host is under its limit
+     * if limits are adaptive. Its permit is released once it's done, retries included.
+     *
+     * @param attempt Number of times the request was sent already
+     */
+    private void send(final int number, final Request request, final Semaphore permits,
+            final AtomicInteger failures, final int attempt) {
+        if (this.limiter == null) {
+            this.executor.execute(() -> exchange(number, request, null, permits, failures, attempt));
+            return;
+        }
+
+        this.limiter.acquire(route(request)).whenCompleteAsync((hostPermit, error) -> {
+            if (error != null) {
+                fail(number, error instanceof HttpcException
+                    ? (HttpcException) error
+                    : new HttpcException("Error waiting for host", error), failures);
+                permits.release();
+                return;
+            }
+
+            exchange(number, request, hostPermit, permits, failures, attempt);
+        }, this.executor);
+    }
+
+    private void exchange(final int number, final Request request, final HostLimiter.Permit hostPermit,
+            final Semaphore permits, final AtomicInteger failures, final int attempt) {
+        boolean overloaded = false;
+        // Until it's known the request got to the host, it doesn't tell anything about it
+        boolean reached = false;
+        boolean retry = false;
+        long retryAfter = -1;
+
+        try {
+            if (request.getParallelism() > 1) {
+                reached = true;
+                new RangedDownload(request).run();
+                return;
+            }
+
+            final HttpRequestHandler handler = new HttpRequestHandler(request).formatRequest();
+            try {
+                handler.submitRequest();
+            } catch (HttpcException e) {
+                if (!isTransportFailure(e)) {
+                    throw e;
+                }
+
+                // Nothing of the response was written yet, so there's nothing to undo before trying again
+                reached = true;
+                overloaded = true;
+                retry = isRetried(request, attempt);
+                if (!retry) {
+                    throw e;
+                }
+                return;
+            }
+
+            reached = true;
+            if (hostPermit != null) {
+                hostPermit.responded();
+            }
+
+            final int status = handler.getStatusCode();
+            overloaded = status == 429 || status == 503;
+            retry = overloaded && isRetried(request, attempt);
+
+            if (retry) {
+                retryAfter = retryAfterMillis(handler.getResponseHeader("Retry-After"));
+                handler.discardResponse();
+            } else {
+                handler.outputResponse();
+            }
+        } catch (HttpcException e) {
+            fail(number, e, failures);
+        } finally {
+            if (hostPermit != null && reached) {
+                hostPermit.release(overloaded);
+            } else if (hostPermit != null) {
+                hostPermit.cancel();
+            }
+
+            if (retry) {
+                this.retried.incrementAndGet();
+                final long delay = retryAfter >= 0 ? retryAfter : backoffMillis(attempt);
+                CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, this.executor)
+                    .execute(() -> send(number, request, permits, failures, attempt + 1));
+            } else {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Only GETs are sent again: they have no body and are safe to repeat
+     */
+    private boolean isRetried(final Request request, final int attempt) {
+        return attempt < this.retries && request.getMethod() == Method.GET;
+    }
+
+    /**
+     * Whether a request failed because the host refused, dropped or didn't answer
+     * the connection, rather than for a reason of our own or one retrying won't fix
+     */
+    private static boolean isTransportFailure(final HttpcException e) {
+        final Throwable cause = e.getCause();
+        return cause instanceof SocketException
+            || cause instanceof SocketTimeoutException
+            || cause instanceof EOFException;
+    }
+
+    /**
+     * Delay a 429/503 asked for, in seconds or as an HTTP date
+     *
+     * @param retryAfter Retry-After header, or null
+     * @return Milliseconds to wait, up to RETRY_AFTER_MAX_MILLIS, or -1 if the response didn't say
+     */
+    private static long retryAfterMillis(final String retryAfter) {
+        if (retryAfter == null) {
+            return -1;
+        }
+
+        long millis;
+        try {
+            millis = Long.parseLong(retryAfter.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            try {
+                millis = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli()
+                    - System.currentTimeMillis();
+            } catch (DateTimeParseException e2) {
+                return -1;
+            }
+        }
+
+        return Math.min(RETRY_AFTER_MAX_MILLIS, Math.max(0, millis));
+    }
+
+    /**
+     * Random delay up to a cap that doubles with every attempt ('full jitter'),
+     * so requests turned away together don't all come back at the same moment
+     */
+    private static long backoffMillis(final int attempt) {
+        final long cap = Math.min(RETRY_MAX_MILLIS, RETRY_BASE_MILLIS << Math.min(attempt, 16));
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    /**
+     * Scheme, host and port of a request, eg. 'http://localhost:8080'
+     */
+    private static String route(final Request request) {
+        return (request.isSecure() ? "https://" : "http://") + request.getHost().toLowerCase() + ":" + request.getPort();
+    }
+
+    /**
+     * Send a request through the non-blocking engine, releasing its permit once the
+     * response has been written to its output file
+     */
+    private void sendAsync(final int number, final Request request, final Semaphore permits,
+            final AtomicInteger failures) {
+        final OutputStream sink;
+        final CompletableFuture<Integer> response;
+
+        try {
+            sink = Utils.openOutputFile(request.getOutputFile());
+        } catch (IOException e) {
+            fail(number, new HttpcException("Error writing to file: " + request.getOutputFile(), e), failures);
+            permits.release();
+            return;
+        }
+
+        try {
+            response = new HttpRequestHandler(request)
+                .formatRequest()
+                .submitRequest()
+                .sendAsync(sink);
+        } catch (HttpcException e) {
+            closeQuietly(sink);
+            fail(number, e, failures);
+            permits.release();
+            return;
+        }
+
+        response.whenComplete((status, error) -> {
+            closeQuietly(sink);
+            if (error != null) {
+                fail(number, new HttpcException("Error communicating with host", error), failures);
+            }
+            permits.release();
+        });
+    }
+
+    /**
+     * Only plain GETs are pipelined: they have no body, are safe to send again if
+     * the server drops the connection, and don't need the cache, a ranged download
+     * or the non-blocking engine
+     */
+    private boolean isPipelined(final Request request) {
+        return this.pipelineDepth > 1
+            && request.getMethod() == Method.GET
+            && request.getCacheDirectory() == null
+            && request.getParallelism() == 1;
+    }
+
+    private static void sendPipeline(final PipelineGroup group, final Semaphore permits,
+            final AtomicInteger failures) {
+        try {
+            final HttpcException[] errors = new Pipeline(group.requests).run();
+
+            for (int i = 0; i < errors.length; i++) {
+                if (errors[i] != null) {
+                    fail(group.numbers.get(i), errors[i], failures);
+                }
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private static void fail(final int number, final HttpcException e, final AtomicInteger failures) {
+        failures.incrementAndGet();
+        System.out.println(String.format("[%d] %s", number, e.getMessage()));
+    }
+
+    private static void closeQuietly(final OutputStream sink) {
+        try {
+            sink.close();
+        } catch (IOException e) {
+            // Nothing more to write to it either way
+        }
+    }
+
+    /**
+     * Read the batch file, one command per line
+     */
+    private List<String[]> readCommands() {
+        List<String[]> commands = new ArrayList<>();
+
+        try (
+            BufferedReader reader = new BufferedReader(new FileReader(Utils.resolvePath(this.file).toFile()));
+        ) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                // Accept lines copied straight from a shell, eg. the ones in curl.txt
+                for (String prefix : COMMAND_PREFIXES) {
+                    if (line.startsWith(prefix)) {
+                        line = line.substring(prefix.length());
+                        break;
+                    }
+                }
+
+                commands.add(tokenize(line));
+            }
+        } catch (IOException e) {
+            throw new HttpcException("Error reading batch file: " + this.file, e);
+        }
+
+        return commands;
+    }
+
+    /**
+     * Output file for a command that didn't set its own, eg. 'curl-3' for the third command of 'curl.txt'
+     */
+    private String numberedOutput(final int number) {
+        final int extension = this.file.lastIndexOf('.');
+        final String base = extension > 0 ? this.file.substring(0, extension) : this.file;
+
+        return base + "-" + number;
+    }
+
+    /**
+     * GETs to one host waiting to be pipelined, with their line numbers
+     */
+    private static class PipelineGroup {
+        private final List<Integer> numbers = new ArrayList<>();
+        private final List<Request> requests = new ArrayList<>();
+
+        private void add(final int number, final Request request) {
+            this.numbers.add(number);
+            this.requests.add(request);
+        }
+
+        private int size() {
+            return this.requests.size();
+        }
+    }
+
+    /**
+     * Split a command line into arguments the way a shell would for simple cases:
+     * whitespace separates arguments, single and double quotes group them and a
+     * backslash escapes the next character (except inside single quotes)
+     */
+    static String[] tokenize(final String line) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean inToken = false;
+        char quote = 0;
+
+        for (int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+
+            if (quote == '\'') {
+                if (c == '\'') {
+                    quote = 0;
+                } else {
+                    current.append(c);
+                }
+            } else if (c == '\\' && i + 1 < line.length()) {
+                current.append(line.charAt(++i));
+                inToken = true;
+            } else if (quote == '"') {
+                if (c == '"') {
+                    quote = 0;
+                } else {
+                    current.append(c);
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                inToken = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inToken) {
+                    tokens.add(current.toString());
+                    current.setLength(0);
+                    inToken = false;
+                }
+            } else {
+                current.append(c);
+                inToken = true;
+            }
+        }
+
+        if (inToken) {
+            tokens.add(current.toString());
+        }
+
+        return tokens.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,358 @@
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import constants.Argument;
+import constants.Method;
+
+/**
+ * Load generator that repeatedly sends one httpc request through the same
+ * Request/HttpRequestHandler path as a normal invocation, eg.
+ * 'httpc bench --concurrency 16 --duration 30 --warmup 5 get http://localhost/ --http1.1'
+ *
+ * Each worker sends its next request as soon as the previous one completes
+ * (fixed concurrency), for either a number of requests or a length of time.
+ *
+ * With '--rate' the load is an open model instead: a dispatcher releases
+ * requests on an ArrivalSchedule whether or not earlier ones have completed,
+ * and latency is measured from when a request was due rather than from when a
+ * worker got to it. A server stall then shows up as the queue of requests it
+ * held up, instead of being hidden by the workers sending less (coordinated
+ * omission).
+ */
+public class BenchRunner {
+    private static final int DEFAULT_CONCURRENCY = 8;
+    private static final long DEFAULT_DURATION_SECONDS = 10;
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+    // Tells a worker the dispatcher is done
+    private static final long END_OF_ARRIVALS = Long.MIN_VALUE;
+
+    private final String[] args;
+    private String[] command = null;
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private long requests = -1;
+    private long durationSeconds = -1;
+    private long warmupSeconds = 0;
+    private String metricsFile = null;
+    private double[] rates = null;
+    private double rampSeconds = 0;
+    private double stepSeconds = -1;
+    private long maxBacklog = 0;
+
+    public BenchRunner(final String[] args) {
+        this.args = args;
+        evaluate();
+    }
+
+    /**
+     * Validate the bench options, everything after them is the httpc command to send
+     */
+    private void evaluate() {
+        int i = 1;
+
+        try {
+            for (; i < args.length; i++) {
+                final Argument currentArg = Utils.parse(Argument.class, args[i]);
+
+                if (currentArg == null || i + 1 >= args.length) {
+                    break;
+                }
+
+                switch (currentArg) {
+                case CONCURRENCY:
+                    this.concurrency = Integer.parseInt(args[++i]);
+                    continue;
+                case REQUESTS:
+                    this.requests = Long.parseLong(args[++i]);
+                    continue;
+                case DURATION:
+                    this.durationSeconds = Long.parseLong(args[++i]);
+                    continue;
+                case WARMUP:
+                    this.warmupSeconds = Long.parseLong(args[++i]);
+                    continue;
+                case METRICS:
+                    this.metricsFile = args[++i];
+                    continue;
+                case RATE:
+                    this.rates = parseRates(args[++i]);
+                    continue;
+                case RAMP:
+                    this.rampSeconds = Double.parseDouble(args[++i]);
+                    continue;
+                case STEP:
+                    this.stepSeconds = Double.parseDouble(args[++i]);
+                    continue;
+                default:
+                    Utils.printHelpAndExit(Method.BENCH);
+                }
+            }
+        } catch (NumberFormatException e) {
+            Utils.printHelpAndExit(Method.BENCH);
+        }
+
+        // Either a number of requests or a duration, not both
+        if (this.requests >= 0 && this.durationSeconds >= 0) {
+            Utils.printHelpAndExit(Method.BENCH);
+        }
+
+        if (this.requests < 0 && this.durationSeconds < 0) {
+            this.durationSeconds = DEFAULT_DURATION_SECONDS;
+        }
+
+        if (i >= args.length || this.concurrency < 1 || this.warmupSeconds < 0) {
+            Utils.printHelpAndExit(Method.BENCH);
+        }
+
+        // A ramp or steps only make sense with a rate, and several rates need a step length
+        if (this.rates == null
+                ? this.rampSeconds != 0 || this.stepSeconds >= 0
+                : this.rampSeconds < 0 || (this.rates.length > 1 && this.stepSeconds <= 0)) {
+            Utils.printHelpAndExit(Method.BENCH);
+        }
+
+        this.command = Arrays.copyOfRange(args, i, args.length);
+
+        // Validate the command once up front rather than in every worker
+        new CommandProcessor(this.command);
+    }
+
+    /**
+     * Run the warmup and measured phases, then print the results
+     */
+    public void run() {
+        final long start = System.nanoTime();
+        final long measureFrom = start + this.warmupSeconds * 1_000_000_000L;
+        final long deadline = this.durationSeconds >= 0
+            ? measureFrom + this.durationSeconds * 1_000_000_000L
+            : Long.MAX_VALUE;
+        final AtomicLong remaining = new AtomicLong(this.requests >= 0 ? this.requests : Long.MAX_VALUE);
+
+        // Long runs are watched while they go, over JMX or through the exported file
+        Metrics.getDefault().registerMBean();
+        final PrometheusExporter exporter = PrometheusExporter.start(this.metricsFile);
+
+        final ExecutorService executor = Utils.newRequestExecutor();
+        final List<Future<Worker>> futures = new ArrayList<>();
+        final BlockingQueue<Long> arrivals = this.rates != null ? new LinkedBlockingQueue<>() : null;
+
+        for (int i = 0; i < this.concurrency; i++) {
+            final Worker worker = new Worker(measureFrom, deadline, remaining, arrivals);
+            futures.add(executor.submit(worker, worker));
+        }
+
+        Thread dispatcher = null;
+        if (arrivals != null) {
+            final ArrivalSchedule schedule = new ArrivalSchedule(this.rates, this.rampSeconds, this.stepSeconds);
+            dispatcher = new Thread(() -> dispatch(schedule, start, measureFrom, deadline, remaining, arrivals), "httpc-bench-dispatcher");
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+        }
+
+        final Worker total = new Worker(measureFrom, deadline, remaining, null);
+        try {
+            for (Future<Worker> future : futures) {
+                total.merge(future.get());
+            }
+        } catch (Exception e) {
+            throw new HttpcException("Benchmark worker failed", e);
+        } finally {
+            if (dispatcher != null) {
+                dispatcher.interrupt();
+            }
+            executor.shutdownNow();
+            ConnectionPool.getDefault().closeIdle();
+            if (exporter != null) {
+                exporter.stop();
+            }
+        }
+
+        printResults(total, Math.max(1, total.lastCompletion - measureFrom));
+    }
+
+    /**
+     * Release every request at its scheduled time until the run is over, then tell
+     * the workers to stop. Falling behind (eg. a long GC pause) releases the late
+     * requests at once, each still carrying the time it was due.
+     */
+    private void dispatch(final ArrivalSchedule schedule, final long start, final long measureFrom,
+            final long deadline, final AtomicLong remaining, final BlockingQueue<Long> arrivals) {
+        try {
+            for (long n = 0; ; n++) {
+                final long due = start + schedule.offsetNanos(n);
+
+                if (due >= deadline || (due >= measureFrom && remaining.getAndDecrement() <= 0)) {
+                    break;
+                }
+
+                if (!Utils.sleepUntil(due)) {
+                    return;
+                }
+
+                arrivals.add(due);
+                this.maxBacklog = Math.max(this.maxBacklog, arrivals.size());
+            }
+        } finally {
+            for (int i = 0; i < this.concurrency; i++) {
+                arrivals.add(END_OF_ARRIVALS);
+            }
+        }
+    }
+
+    /**
+     * eg. '100' or '100,200,400'
+     */
+    private static double[] parseRates(final String value) {
+        final String[] parts = value.split(",");
+        final double[] rates = new double[parts.length];
+
+        for (int i = 0; i < parts.length; i++) {
+            rates[i] = Double.parseDouble(parts[i]);
+            if (!(rates[i] > 0) || Double.isInfinite(rates[i])) {
+                Utils.printHelpAndExit(Method.BENCH);
+            }
+        }
+
+        return rates;
+    }
+
+    private void printResults(final Worker total, final long elapsedNanos) {
+        final LatencyHistogram histogram = total.histogram;
+        final double seconds = elapsedNanos / 1e9;
+
+        System.out.println(String.format("%s %s, %d concurrent, %ds warmup",
+            this.command[0].toUpperCase(), this.command.length > 1 ? this.command[1] : "", this.concurrency, this.warmupSeconds));
+        System.out.println(String.format("  Requests:    %d in %.2fs (%d errors, %d non-2xx/3xx)",
+            histogram.getTotalCount() + total.errors, seconds, total.errors, total.failedStatuses));
+        System.out.println(String.format("  Throughput:  %.2f requests/sec", histogram.getTotalCount() / seconds));
+        if (this.rates != null) {
+            System.out.println(String.format("  Schedule:    %s requests/sec, %d most waiting for a worker",
+                formatRates(), this.maxBacklog));
+        }
+        System.out.println(String.format("  Latency:     mean %s", formatNanos((long) histogram.getMean())));
+
+        for (double percentile : PERCENTILES) {
+            System.out.println(String.format("    p%-8s %s",
+                percentile == (long) percentile ? String.valueOf((long) percentile) : String.valueOf(percentile),
+                formatNanos(histogram.getValueAtPercentile(percentile))));
+        }
+        System.out.println(String.format("    %-9s %s", "max", formatNanos(histogram.getMax())));
+
+        if (total.lastError != null) {
+            System.out.println("  Last error:  " + total.lastError);
+        }
+    }
+
+    private String formatRates() {
+        StringBuilder out = new StringBuilder(this.rampSeconds > 0 ? "0 > " : "");
+        for (int i = 0; i < this.rates.length; i++) {
+            out.append(i > 0 ? " > " : "").append(String.format("%.0f", this.rates[i]));
+        }
+        return out.toString();
+    }
+
+    private static String formatNanos(final long nanos) {
+        return String.format("%.3fms", nanos / 1e6);
+    }
+
+    /**
+     * Sends requests back to back on its own Request object, or as the dispatcher
+     * releases them, recording into its own histogram so workers never contend
+     * with each other
+     */
+    private class Worker implements Runnable {
+        private final long measureFrom;
+        private final long deadline;
+        private final AtomicLong remaining;
+        // Send times of the requests the dispatcher released, null without a rate
+        private final BlockingQueue<Long> arrivals;
+
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private long errors = 0;
+        private long failedStatuses = 0;
+        private long lastCompletion = 0;
+        private String lastError = null;
+
+        private Worker(final long measureFrom, final long deadline, final AtomicLong remaining,
+                final BlockingQueue<Long> arrivals) {
+            this.measureFrom = measureFrom;
+            this.deadline = deadline;
+            this.remaining = remaining;
+            this.arrivals = arrivals;
+        }
+
+        @Override
+        public void run() {
+            final Request request = new CommandProcessor(command).getRequest();
+            final OutputStream discard = OutputStream.nullOutputStream();
+
+            while (!Thread.currentThread().isInterrupted()) {
+                final long sendTime;
+
+                if (arrivals != null) {
+                    // When the request was due, waiting for this worker counts towards its latency
+                    try {
+                        sendTime = arrivals.take();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (sendTime == END_OF_ARRIVALS) {
+                        return;
+                    }
+                } else {
+                    sendTime = System.nanoTime();
+                    if (sendTime >= deadline || (sendTime >= measureFrom && remaining.getAndDecrement() <= 0)) {
+                        return;
+                    }
+                }
+
+                final boolean measured = sendTime >= measureFrom;
+
+                int status = 0;
+                String error = null;
+                try {
+                    HttpRequestHandler handler = new HttpRequestHandler(request)
+                        .formatRequest()
+                        .submitRequest();
+                    handler.outputResponse(discard);
+                    status = handler.getStatusCode();
+                } catch (HttpcException e) {
+                    error = e.getMessage();
+                }
+
+                final long completion = System.nanoTime();
+                if (!measured) {
+                    continue;
+                }
+
+                lastCompletion = completion;
+                if (error != null) {
+                    errors++;
+                    lastError = error;
+                    continue;
+                }
+
+                histogram.record(completion - sendTime);
+                if (status >= 400) {
+                    failedStatuses++;
+                }
+            }
+        }
+
+        private void merge(final Worker other) {
+            histogram.merge(other.histogram);
+            errors += other.errors;
+            failedStatuses += other.failedStatuses;
+            lastCompletion = Math.max(lastCompletion, other.lastCompletion);
+            if (other.lastError != null) {
+                lastError = other.lastError;
+            }
+        }
+    }
+}
@@ -1,10 +1,12 @@
-import java.net.URL;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Set;
 
 import constants.Argument;
+import constants.Messages;
 import constants.Method;
 
 /**
@@ -46,6 +48,9 @@ public class CommandProcessor {
         }
 
         // Perform basic validation on the URL field (Should be second argument)
+        if (args.length < 2) {
+            Utils.printHelpAndExit(method);
+        }
         processUrl(args[1]);
 
         // Check that arguments don't occur more than once
@@ -66,6 +71,10 @@ public class CommandProcessor {
             Utils.printHelpAndExit();
         }
 
+        // The non-blocking engine streams responses straight to their output, there's nothing to record from
+        if (this.request.getRecordFile() != null && this.request.isNonBlocking()) {
+            throw new UsageException("--record doesn't support --nio", method == Method.GET ? Messages.HELP_GET : Messages.HELP_POST);
+        }
     }
 
         /**
@@ -89,6 +98,18 @@ public class CommandProcessor {
             case VERBOSE:
                 this.request.setVerbose(true);
                 continue;
+            case HTTP_1_1:
+                this.request.setKeepAlive(true);
+                continue;
+            case NIO:
+                this.request.setNonBlocking(true);
+                continue;
+            case COMPRESSED:
+                this.request.setCompressed(true);
+                continue;
+            case TIMINGS:
+                this.request.setTimingsJson(true);
+                continue;
             case HEADER:
                 if (isValidNextArg(i, args)) {
                     processHeader(args[++i]);
@@ -99,10 +120,40 @@ public class CommandProcessor {
                     this.request.setOutputFile(args[++i]);
                     continue;
                 }
+            case RESOLVE:
+                if (isValidNextArg(i, args)) {
+                    processResolve(args[++i]);
+                    continue;
+                }
+            case WRITE_OUT:
+                if (isValidNextArg(i, args)) {
+                    this.request.setWriteOut(args[++i]);
+                    continue;
+                }
+            case RECORD:
+                if (isValidNextArg(i, args)) {
+                    this.request.setRecordFile(args[++i]);
+                    continue;
+                }
+            case CACHE:
+                if (isValidNextArg(i, args)) {
+                    this.request.setCacheDirectory(args[++i]);
+                    continue;
+                }
+            case PARALLEL:
+                if (isValidNextArg(i, args)) {
+                    processParallel(args[++i]);
+                    continue;
+                }
             default:
                 Utils.printHelpAndExit();
             }
         }
+
+        // Ranged parts are written straight into their place in the output file, there's no console equivalent
+        if (this.request.getParallelism() > 1 && this.request.getOutputFile() == null) {
+            throw new UsageException("--parallel needs an output file (-o)", Messages.HELP_GET);
+        }
     }
 
     /**
@@ -129,6 +180,21 @@ public class CommandProcessor {
             case VERBOSE:
                 this.request.setVerbose(true);
                 continue;
+            case HTTP_1_1:
+                this.request.setKeepAlive(true);
+                continue;
+            case NIO:
+                this.request.setNonBlocking(true);
+                continue;
+            case COMPRESSED:
+                this.request.setCompressed(true);
+                continue;
+            case TIMINGS:
+                this.request.setTimingsJson(true);
+                continue;
+            case COMPRESS_BODY:
+                this.request.setCompressBody(true);
+                continue;
             case HEADER:
                 if (isValidNextArg(i, args)) {
                     processHeader(args[++i]);
@@ -149,6 +215,21 @@ public class CommandProcessor {
                     this.request.setOutputFile(args[++i]);
                     continue;
                 }
+            case RESOLVE:
+                if (isValidNextArg(i, args)) {
+                    processResolve(args[++i]);
+                    continue;
+                }
+            case WRITE_OUT:
+                if (isValidNextArg(i, args)) {
+                    this.request.setWriteOut(args[++i]);
+                    continue;
+                }
+            case RECORD:
+                if (isValidNextArg(i, args)) {
+                    this.request.setRecordFile(args[++i]);
+                    continue;
+                }
             default:
                 // Don't break
                 Utils.printHelpAndExit();
@@ -186,35 +267,34 @@ public class CommandProcessor {
     }
 
     /**
-     * Validate provided URL and break it into useful pieces we will use in our HTTP request
-     * @param maybeURL
+     * Validate the number of parallel ranged requests for a download
+     * @param value
      */
-    private void processUrl(final String maybeURL) {
+    private void processParallel(final String value) {
         try {
-            // Basic URL validation, this will throw on certain malformed URLs
-            URL url = new URL(maybeURL);
+            final int parallelism = Integer.parseInt(value);
 
-            if (url.getPath().trim() != "") {
-                String queryParameters = "";
-
-                if (url.getQuery() != null) {
-                    queryParameters = "?" + url.getQuery();
-                }
-
-                this.request.setPath(url.getPath() + queryParameters);
-            } else {
-                this.request.setPath("/");
+            if (parallelism >= 1 && parallelism <= RangedDownload.MAX_PARALLELISM) {
+                this.request.setParallelism(parallelism);
+                return;
             }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
 
-            this.request.setHost(url.getHost());
-            // this.request.setHost(
-            //     String.format("%s://%s", url.getProtocol(), url.getHost())
-            // );
-            this.request.setUrl(maybeURL);
-        } catch (Exception e) {
+        throw new UsageException("--parallel must be between 1 and " + RangedDownload.MAX_PARALLELISM, Messages.HELP_GET);
+    }
+
+    /**
+     * Validate provided URL and break it into useful pieces we will use in our HTTP request
+     * @param maybeURL
+     */
+    private void processUrl(final String maybeURL) {
+        try {
+            this.request.parseUrl(maybeURL);
+        } catch (HttpcException e) {
             // URL is bad
-            System.out.println("Error parsing URL");
-            Utils.printHelpAndExit();
+            throw new UsageException("Error parsing URL", Messages.HELP_DEFAULT);
         }
     }
 
@@ -225,13 +305,44 @@ public class CommandProcessor {
      * @param maybeHeader Header stirng
      */
     private void processHeader(final String maybeHeader) {
-        String[] splitHeader = maybeHeader.split(":");
+        // Only the first colon ends the name, values can have their own (eg. URLs or times)
+        final int colon = maybeHeader.indexOf(':');
+        final String name = colon > 0 ? maybeHeader.substring(0, colon).trim() : "";
 
-        if (splitHeader.length != 2) {
+        if (name.isEmpty()) {
+            Utils.printHelpAndExit();
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.isWhitespace(name.charAt(i))) {
+                Utils.printHelpAndExit();
+            }
+        }
+
+        this.request.addHeader(name, maybeHeader.substring(colon + 1).trim());
+    }
+
+    /**
+     * Validate a 'host:port:address' override and pin the host to that address for
+     * this request
+     *
+     * @param maybeResolve
+     */
+    private void processResolve(final String maybeResolve) {
+        // The address is last and may be an IPv6 literal containing colons
+        String[] splitResolve = maybeResolve.split(":", 3);
+
+        if (splitResolve.length != 3) {
             Utils.printHelpAndExit();
         }
 
-        this.request.insertHeader(maybeHeader);
+        try {
+            final int port = Integer.parseInt(splitResolve[1]);
+            final InetAddress address = InetAddress.getByName(splitResolve[2].replaceAll("^\\[|\\]$", ""));
+
+            this.request.insertResolve(splitResolve[0], port, address);
+        } catch (NumberFormatException | UnknownHostException e) {
+            Utils.printHelpAndExit();
+        }
     }
 
     /**
@@ -241,7 +352,7 @@ public class CommandProcessor {
      * @param inlineData
      */
     private void processInlineData(final String inlineData) {
-        if (this.request.getBody() != null) {
+        if (this.request.getBody() != null || this.request.getBodyFile() != null) {
             // Tried to set both inline data and file data
             Utils.printHelpAndExit();
         }
@@ -250,37 +361,34 @@ public class CommandProcessor {
     }
 
     /**
-     * Validate that a duplicate flag was not set and attempt to extract body from
-     * file and apply it to request object
+     * Validate that a duplicate flag was not set and that the file exists, then
+     * apply it to the request object. The file is only read when the request is
+     * sent, straight to the connection.
      * 
      * @param file
      */
     private void processFileInput(final String file) {
-        if (this.request.getBody() != null) {
+        if (this.request.getBody() != null || this.request.getBodyFile() != null) {
             // Tried to set both inline data and file data
             Utils.printHelpAndExit();
         }
 
-        this.request.setBody(Utils.extractFileContents(file));
+        this.request.setBodyFile(Utils.resolveFile(file));
     }
 
     /**
-     * Check that
+     * Check that no argument other than the allowed duplicates is given twice.
+     * A plain loop, streams would load a few dozen lambda classes on every launch.
      */
     private void validateDuplicates() {
-        // Create a map with the argument as the key, and the occurence as it's value
-        Map<String, Long> valueCount = Arrays.stream(args)
-                .collect(Collectors.groupingBy(x -> x, Collectors.counting()));
-
-        valueCount.entrySet().stream().forEach(entry -> {
-            final Argument arg = Utils.parse(Argument.class, entry.getKey());
+        final Set<String> seen = new HashSet<>();
 
-            // If the argument is not in our allowed duplicates array, and its count is
-            // greater than 1, throw an error
-            if (!DUPLICATE_ARGUMENTS.contains(arg) && entry.getValue() > 1) {
-                System.out.println("Duplicate arguments");
-                Utils.printHelpAndExit();
+        for (String value : args) {
+            // If the argument is not in our allowed duplicates array, and it was
+            // seen before, throw an error
+            if (!seen.add(value) && !DUPLICATE_ARGUMENTS.contains(Utils.parse(Argument.class, value))) {
+                throw new UsageException("Duplicate arguments", Messages.HELP_DEFAULT);
             }
-        });
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,430 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Keeps idle HTTP/1.1 connections open per route (scheme, host and port) so that
+ * requests issued from the same process can reuse a socket instead of paying for
+ * a new TCP (and TLS) handshake every time
+ */
+public class ConnectionPool {
+    private static final int DEFAULT_MAX_IDLE_PER_ROUTE = 8;
+    private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30_000;
+    private static final int DEFAULT_MAX_PER_ROUTE = 16;
+    private static final long ACQUIRE_TIMEOUT_MILLIS = 30_000;
+
+    private static final ConnectionPool DEFAULT = new ConnectionPool(
+        DEFAULT_MAX_IDLE_PER_ROUTE,
+        DEFAULT_IDLE_TIMEOUT_MILLIS,
+        DEFAULT_MAX_PER_ROUTE
+    );
+
+    private final int maxIdlePerRoute;
+    private final long idleTimeoutMillis;
+    private final int maxPerRoute;
+    private final Map<String, Route> routes = new HashMap<>();
+
+    /**
+     * @param maxIdlePerRoute   Maximum number of idle connections kept open for a single route
+     * @param idleTimeoutMillis How long an idle connection may sit in the pool before it is closed
+     * @param maxPerRoute       Maximum number of connections (idle and in use) open to a single route
+     */
+    public ConnectionPool(final int maxIdlePerRoute, final long idleTimeoutMillis, final int maxPerRoute) {
+        this.maxIdlePerRoute = maxIdlePerRoute;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxPerRoute = maxPerRoute;
+    }
+
+    /**
+     * Pool shared by every handler in this process that doesn't provide its own
+     * @return
+     */
+    public static ConnectionPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Get a connection to the given address, reusing an idle one for the route if
+     * possible. Waits for a connection to be released if the route is at its limit.
+     *
+     * @param address Resolved address of the host
+     * @param host    Host name, used with the port to identify the route
+     * @param port
+     * @param secure  Whether the connection runs TLS, https routes are separate from http ones
+     * @return
+     * @throws IOException
+     */
+    public Connection acquire(final InetAddress address, final String host, final int port, final boolean secure)
+            throws IOException {
+        final String key = routeKey(host, port, secure);
+        final long deadline = System.currentTimeMillis() + ACQUIRE_TIMEOUT_MILLIS;
+
+        synchronized (this) {
+            Route route = routes.computeIfAbsent(key, k -> new Route());
+
+            while (true) {
+                evictExpired(route);
+
+                Connection idle = route.idle.pollFirst();
+                if (idle != null) {
+                    route.leased++;
+                    idle.reused = true;
+                    Metrics.getDefault().recordPoolAcquire(true);
+                    return idle;
+                }
+
+                if (route.leased < maxPerRoute) {
+                    // Reserve our slot, the socket itself is opened outside the lock
+                    route.leased++;
+                    break;
+                }
+
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("Timed out waiting for a connection to " + key);
+                }
+
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for a connection to " + key);
+                }
+            }
+        }
+
+        Metrics.getDefault().recordPoolAcquire(false);
+        try {
+            return connect(key, address, host, port, secure);
+        } catch (IOException e) {
+            synchronized (this) {
+                routes.get(key).leased--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Return a connection to the pool once its response has been fully read
+     *
+     * @param connection
+     * @param reusable   False if the connection can't carry another request
+     *                   (eg. 'Connection: close' or the body was delimited by EOF)
+     */
+    public void release(final Connection connection, final boolean reusable) {
+        boolean keep = false;
+
+        synchronized (this) {
+            Route route = routes.get(connection.key);
+            route.leased--;
+
+            if (reusable && !connection.socket.isClosed() && route.idle.size() < maxIdlePerRoute) {
+                connection.lastUsed = System.currentTimeMillis();
+                // Most recently used first, so the warmest socket is handed out next
+                route.idle.addFirst(connection);
+                keep = true;
+            }
+
+            notifyAll();
+        }
+
+        if (!keep) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Close every idle connection held by the pool
+     */
+    public synchronized void closeIdle() {
+        for (Route route : routes.values()) {
+            for (Connection connection : route.idle) {
+                connection.close();
+            }
+            route.idle.clear();
+        }
+    }
+
+    /**
+     * Open a connection that isn't pooled, for requests that close it afterwards
+     *
+     * @param address
+     * @param host    Host name, checked against the certificate of a TLS server
+     * @param port
+     * @param secure  Whether to run the TLS handshake once connected
+     * @return
+     * @throws IOException
+     */
+    public static Connection open(final InetAddress address, final String host, final int port, final boolean secure)
+            throws IOException {
+        return connect(routeKey(host, port, secure), address, host, port, secure);
+    }
+
+    private static Connection connect(final String key, final InetAddress address, final String host, final int port,
+            final boolean secure) throws IOException {
+        final Socket socket = openSocket(address, port);
+
+        if (!secure) {
+            return new Connection(key, socket, 0);
+        }
+
+        final long start = System.nanoTime();
+        try {
+            final Socket tls = Tls.handshake(socket, host, port);
+            return new Connection(key, tls, System.nanoTime() - start);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static String routeKey(final String host, final int port, final boolean secure) {
+        return (secure ? "https://" : "http://") + host + ":" + port;
+    }
+
+    /**
+     * Open a socket backed by a channel, so file bodies can be sent with
+     * FileChannel.transferTo() and skip copying through the JVM heap
+     *
+     * @param address
+     * @param port
+     * @return
+     * @throws IOException
+     */
+    public static Socket openSocket(final InetAddress address, final int port) throws IOException {
+        return SocketChannel.open(new InetSocketAddress(address, port)).socket();
+    }
+
+    private void evictExpired(final Route route) {
+        final long now = System.currentTimeMillis();
+        Iterator<Connection> it = route.idle.iterator();
+
+        while (it.hasNext()) {
+            Connection connection = it.next();
+
+            if (now - connection.lastUsed > idleTimeoutMillis || connection.socket.isClosed()) {
+                it.remove();
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Bookkeeping for a single host:port
+     */
+    private static class Route {
+        private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+        private int leased = 0;
+    }
+
+    /**
+     * A socket along with its buffered output and read buffer. The buffers must
+     * outlive a single request, since buffered bytes belong to the connection.
+     * Connections opened directly rather than through acquire() are never pooled.
+     */
+    public static class Connection {
+        private static final int BUFFER_SIZE = 8192;
+
+        private final String key;
+        private final Socket socket;
+        private final InputStream input;
+        private final OutputStream output;
+        private final ByteBuffer readBuffer;
+        private final long handshakeNanos;
+        private long lastUsed;
+        private boolean reused = false;
+        private long bytesRead = 0;
+
+        Connection(final String key, final Socket socket, final long handshakeNanos) throws IOException {
+            this.key = key;
+            this.socket = socket;
+            this.handshakeNanos = handshakeNanos;
+            this.input = socket.getInputStream();
+            this.output = new BufferedOutputStream(socket.getOutputStream());
+            // Kept in read mode, position to limit are the bytes not yet consumed
+            this.readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+            this.readBuffer.flip();
+            this.lastUsed = System.currentTimeMillis();
+            Metrics.getDefault().connectionOpened();
+        }
+
+        public OutputStream getOutputStream() {
+            return this.output;
+        }
+
+        /**
+         * Send a file to the peer after anything already written to the output stream.
+         * Channel backed sockets let the kernel copy the file directly (sendfile),
+         * otherwise it's copied through a fixed size buffer.
+         *
+         * @param file
+         * @param length Bytes of the file the request declared, exactly these many are sent
+         * @return Number of bytes sent
+         * @throws IOException Also if the file got shorter than its declared length
+         */
+        public long sendFile(final Path file, final long length) throws IOException {
+            output.flush();
+
+            try (
+                FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+            ) {
+                final SocketChannel target = channel();
+                long position = 0;
+
+                if (target != null) {
+                    while (position < length) {
+                        // A blocking socket takes at least a byte, so nothing sent means the file ended
+                        final long sent = source.transferTo(position, length - position, target);
+                        if (sent == 0) {
+                            throw truncated(file, position, length);
+                        }
+                        position += sent;
+                    }
+                    return position;
+                }
+
+                final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                while (position < length) {
+                    buffer.clear().limit((int) Math.min(BUFFER_SIZE, length - position));
+                    final int read = source.read(buffer);
+                    if (read < 0) {
+                        throw truncated(file, position, length);
+                    }
+                    output.write(buffer.array(), 0, read);
+                    position += read;
+                }
+                output.flush();
+                return position;
+            }
+        }
+
+        private static IOException truncated(final Path file, final long sent, final long length) {
+            return new IOException("File " + file + " ended after " + sent + " of its " + length + " bytes");
+        }
+
+        /**
+         * Send bytes after anything already written to the output stream, straight
+         * from the buffer (eg. a memory mapped file) if the socket has a channel
+         *
+         * @param bytes Sent from its position to its limit
+         * @return Number of bytes sent
+         * @throws IOException
+         */
+        public long send(final ByteBuffer bytes) throws IOException {
+            output.flush();
+
+            final long length = bytes.remaining();
+            final SocketChannel target = channel();
+
+            if (target != null) {
+                while (bytes.hasRemaining()) {
+                    target.write(bytes);
+                }
+                return length;
+            }
+
+            final byte[] chunk = new byte[Math.min(BUFFER_SIZE, bytes.remaining())];
+            while (bytes.hasRemaining()) {
+                final int count = Math.min(chunk.length, bytes.remaining());
+                bytes.get(chunk, 0, count);
+                output.write(chunk, 0, count);
+            }
+            output.flush();
+            return length;
+        }
+
+        /**
+         * The channel to write to directly, null if writes must go through the socket's stream
+         */
+        private SocketChannel channel() {
+            // A TLS socket hands out the channel beneath it, which would skip the encryption
+            return socket instanceof SSLSocket ? null : socket.getChannel();
+        }
+
+        /**
+         * Bytes read from the socket but not consumed yet
+         * @return
+         */
+        public ByteBuffer getReadBuffer() {
+            return this.readBuffer;
+        }
+
+        /**
+         * Read more bytes from the socket into the read buffer, blocking until some arrive
+         * @return False at end of stream
+         * @throws IOException
+         */
+        public boolean fill() throws IOException {
+            readBuffer.compact();
+            try {
+                final int read = input.read(
+                    readBuffer.array(),
+                    readBuffer.arrayOffset() + readBuffer.position(),
+                    readBuffer.remaining()
+                );
+
+                if (read > 0) {
+                    readBuffer.position(readBuffer.position() + read);
+                    bytesRead += read;
+                }
+                return read >= 0;
+            } finally {
+                readBuffer.flip();
+            }
+        }
+
+        /**
+         * Total bytes read from the socket over the connection's life
+         * @return
+         */
+        public long getBytesRead() {
+            return this.bytesRead;
+        }
+
+        /**
+         * How long the TLS handshake took when the connection was opened
+         * @return 0 for a plain connection
+         */
+        public long getHandshakeNanos() {
+            return this.handshakeNanos;
+        }
+
+        /**
+         * Whether this connection already served a previous request, in which
+         * case the server may have closed it while it sat idle
+         * @return
+         */
+        public boolean isReused() {
+            return this.reused;
+        }
+
+        public void close() {
+            if (socket.isClosed()) {
+                return;
+            }
+            Metrics.getDefault().connectionClosed();
+
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to do with a socket we couldn't close
+            }
+        }
+    }
+}
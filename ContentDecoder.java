@@ -0,0 +1,299 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes a gzip or deflate Content-Encoding as the body is written through it,
+ * so a compressed response is inflated chunk by chunk as it arrives and never
+ * held in memory as a whole.
+ *
+ * gzip members are checked against their CRC and length trailer. 'deflate' is
+ * meant to be zlib wrapped, but some servers send raw deflate data, so the
+ * first two bytes decide which one it is.
+ */
+public class ContentDecoder extends OutputStream {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    // gzip header flags
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private enum State {
+        HEADER, EXTRA_LENGTH, EXTRA, NAME, COMMENT, HEADER_CRC, BODY, TRAILER, DONE
+    }
+
+    // Optional gzip header fields, in the order they appear, and the flag marking each one present
+    private static final State[] OPTIONAL_FIELDS = { State.EXTRA_LENGTH, State.NAME, State.COMMENT, State.HEADER_CRC };
+    private static final int[] OPTIONAL_FLAGS = { FEXTRA, FNAME, FCOMMENT, FHCRC };
+
+    private final OutputStream out;
+    private final boolean gzip;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final CRC32 crc = new CRC32();
+    private Inflater inflater;
+    private State state;
+
+    // Fixed size parts of the gzip header and trailer, or the first two bytes of a deflate body
+    private final byte[] field = new byte[10];
+    private int fieldLength = 0;
+    private int flags = 0;
+    private int extraRemaining = 0;
+
+    private ContentDecoder(final OutputStream out, final boolean gzip) {
+        this.out = out;
+        this.gzip = gzip;
+        this.state = State.HEADER;
+    }
+
+    /**
+     * Decoder for the Content-Encoding of a response
+     *
+     * @param contentEncoding Value of the Content-Encoding header, may be null
+     * @param out             Where the decoded body is written
+     * @return A decoder, or null if the body isn't in an encoding we decode
+     */
+    public static ContentDecoder of(final String contentEncoding, final OutputStream out) {
+        if (contentEncoding == null) {
+            return null;
+        }
+
+        switch (contentEncoding.trim().toLowerCase()) {
+        case "gzip":
+        case "x-gzip":
+            return new ContentDecoder(out, true);
+        case "deflate":
+            return new ContentDecoder(out, false);
+        default:
+            return null;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        final int end = off + len;
+
+        while (off < end) {
+            switch (this.state) {
+            case HEADER:
+                off = this.gzip ? readGzipHeader(b, off, end) : readZlibHeader(b, off, end);
+                break;
+            case EXTRA_LENGTH:
+                off = collect(b, off, end, 2);
+                if (this.fieldLength == 2) {
+                    this.extraRemaining = (this.field[0] & 0xff) | (this.field[1] & 0xff) << 8;
+                    this.fieldLength = 0;
+                    this.state = State.EXTRA;
+                }
+                break;
+            case EXTRA:
+                final int skip = Math.min(this.extraRemaining, end - off);
+                this.extraRemaining -= skip;
+                off += skip;
+                if (this.extraRemaining == 0) {
+                    nextHeaderField(State.EXTRA);
+                }
+                break;
+            case NAME:
+            case COMMENT:
+                // Zero terminated, nothing in them we need
+                while (off < end && b[off] != 0) {
+                    off++;
+                }
+                if (off < end) {
+                    off++;
+                    nextHeaderField(this.state);
+                }
+                break;
+            case HEADER_CRC:
+                off = collect(b, off, end, 2);
+                if (this.fieldLength == 2) {
+                    this.fieldLength = 0;
+                    startBody(true);
+                }
+                break;
+            case BODY:
+                off = inflate(b, off, end);
+                break;
+            case TRAILER:
+                off = collect(b, off, end, 8);
+                if (this.fieldLength == 8) {
+                    this.fieldLength = 0;
+                    checkTrailer();
+                }
+                break;
+            case DONE:
+                // Another gzip member follows, anything after a deflate stream is ignored
+                if (!this.gzip) {
+                    return;
+                }
+                this.state = State.HEADER;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Check that the whole body was decoded and release the inflater. The
+     * downstream stream is left open.
+     *
+     * @throws EOFException If the body ended part way through
+     */
+    public void finish() throws IOException {
+        try {
+            // An empty body (eg. a HEAD or 304 response) is fine too
+            final boolean empty = this.state == State.HEADER && this.fieldLength == 0 && this.inflater == null;
+            if (this.state != State.DONE && !empty) {
+                throw new EOFException("Compressed response body ended early");
+            }
+            this.out.flush();
+        } finally {
+            if (this.inflater != null) {
+                this.inflater.end();
+                this.inflater = null;
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            this.out.close();
+        }
+    }
+
+    /**
+     * Copy bytes into the field buffer until it holds 'size' of them
+     * @return Position just past the last byte copied
+     */
+    private int collect(final byte[] b, final int off, final int end, final int size) {
+        final int length = Math.min(size - this.fieldLength, end - off);
+
+        System.arraycopy(b, off, this.field, this.fieldLength, length);
+        this.fieldLength += length;
+
+        return off + length;
+    }
+
+    private int readGzipHeader(final byte[] b, final int off, final int end) throws IOException {
+        final int next = collect(b, off, end, 10);
+        if (this.fieldLength < 10) {
+            return next;
+        }
+        this.fieldLength = 0;
+
+        if ((this.field[0] & 0xff) != 0x1f || (this.field[1] & 0xff) != 0x8b || this.field[2] != 8) {
+            throw new IOException("Response body isn't valid gzip");
+        }
+
+        this.flags = this.field[3] & 0xff;
+        nextHeaderField(State.HEADER);
+        return next;
+    }
+
+    private int readZlibHeader(final byte[] b, final int off, final int end) throws IOException {
+        final int next = collect(b, off, end, 2);
+        if (this.fieldLength < 2) {
+            return next;
+        }
+        this.fieldLength = 0;
+
+        // zlib header: deflate method, and the two bytes together are a multiple of 31
+        final int cmf = this.field[0] & 0xff;
+        final int flg = this.field[1] & 0xff;
+        final boolean zlib = (cmf & 0x0f) == 8 && (cmf << 8 | flg) % 31 == 0;
+
+        // Either way the two bytes are part of what the inflater reads
+        startBody(!zlib);
+        inflate(this.field, 0, 2);
+        return next;
+    }
+
+    /**
+     * Move to the next optional gzip header field that's present, or on to the body
+     */
+    private void nextHeaderField(final State after) {
+        for (int i = 0; i < OPTIONAL_FIELDS.length; i++) {
+            if (OPTIONAL_FIELDS[i].ordinal() > after.ordinal() && (this.flags & OPTIONAL_FLAGS[i]) != 0) {
+                this.state = OPTIONAL_FIELDS[i];
+                return;
+            }
+        }
+
+        startBody(true);
+    }
+
+    private void startBody(final boolean raw) {
+        if (this.inflater == null) {
+            this.inflater = new Inflater(raw);
+        } else {
+            this.inflater.reset();
+        }
+        this.crc.reset();
+        this.state = State.BODY;
+    }
+
+    /**
+     * Inflate as much of the input as belongs to the compressed stream
+     * @return Position just past the last byte used
+     */
+    private int inflate(final byte[] b, final int off, final int end) throws IOException {
+        this.inflater.setInput(b, off, end - off);
+
+        try {
+            while (!this.inflater.finished()) {
+                final int inflated = this.inflater.inflate(this.buffer);
+
+                if (inflated > 0) {
+                    this.out.write(this.buffer, 0, inflated);
+                    this.crc.update(this.buffer, 0, inflated);
+                } else if (this.inflater.finished()) {
+                    break;
+                } else if (this.inflater.needsInput()) {
+                    return end;
+                } else if (this.inflater.needsDictionary()) {
+                    throw new IOException("Compressed response body needs a preset dictionary");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Response body isn't valid " + (this.gzip ? "gzip" : "deflate"), e);
+        }
+
+        this.state = this.gzip ? State.TRAILER : State.DONE;
+        return end - this.inflater.getRemaining();
+    }
+
+    private void checkTrailer() throws IOException {
+        final long crc = readInt(0);
+        final long size = readInt(4);
+
+        if (crc != this.crc.getValue() || size != (this.inflater.getBytesWritten() & 0xffffffffL)) {
+            throw new IOException("Response body failed its gzip check");
+        }
+
+        this.state = State.DONE;
+    }
+
+    private long readInt(final int offset) {
+        return (this.field[offset] & 0xffL)
+            | (this.field[offset + 1] & 0xffL) << 8
+            | (this.field[offset + 2] & 0xffL) << 16
+            | (this.field[offset + 3] & 0xffL) << 24;
+    }
+}
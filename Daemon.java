@@ -0,0 +1,312 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+/**
+ * Long lived httpc that runs the commands DaemonClient forwards to it over a
+ * Unix domain socket, eg. 'httpc --daemon' then 'java DaemonClient get http://localhost/'.
+ * Commands skip JVM startup and class loading, and share a warmed up JIT,
+ * connection pool and DNS cache.
+ *
+ * Every command goes through Httpc exactly as on the command line, with the
+ * console redirected to the client and relative file arguments resolved
+ * against the client's directory. Since the console is process wide, commands
+ * run one at a time (a batch still sends its requests concurrently).
+ *
+ * Protocol, integers being big endian and strings an int length then UTF-8:
+ *   client: its working directory, the argument count (int), every argument
+ *   daemon: output frames of a stream (byte, 1 stdout or 2 stderr), a length
+ *           (int) and the bytes, then 0 and the exit status (int)
+ */
+public class Daemon {
+    static final byte EXIT = 0;
+    static final byte STDOUT = 1;
+    static final byte STDERR = 2;
+
+    private static final int OUTPUT_BUFFER_SIZE = 8192;
+    private static final String SOCKET_NAME = "daemon.sock";
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+
+    // Held while a command has the console
+    private static final Object CONSOLE = new Object();
+
+    /**
+     * Socket named by HTTPC_SOCKET, or one in a directory of the user's own: under
+     * XDG_RUNTIME_DIR when it's set, otherwise under the temporary directory
+     * @return
+     */
+    public static Path defaultSocket() {
+        final String configured = System.getenv("HTTPC_SOCKET");
+
+        if (configured != null) {
+            return Paths.get(configured);
+        }
+        return defaultDirectory().resolve(SOCKET_NAME);
+    }
+
+    private static Path defaultDirectory() {
+        final String runtime = System.getenv("XDG_RUNTIME_DIR");
+
+        if (runtime != null && !runtime.isEmpty()) {
+            return Paths.get(runtime, "httpc").toAbsolutePath();
+        }
+        return Paths.get(System.getProperty("java.io.tmpdir"), "httpc-" + System.getProperty("user.name")).toAbsolutePath();
+    }
+
+    /**
+     * Whether the socket is safe to send a command to. The default directory is
+     * shared with other users (eg. under /tmp), so anyone could have created it
+     * first and be listening in it: it has to belong to us and be closed to others.
+     *
+     * @param socket
+     * @return
+     * @throws IOException If the directory's owner or permissions can't be read
+     */
+    static boolean isTrusted(final Path socket) throws IOException {
+        final Path directory = socket.toAbsolutePath().getParent();
+        return !directory.equals(defaultDirectory()) || isPrivate(directory);
+    }
+
+    /**
+     * Whether a directory, not a link to one, is owned by us and only accessible to us
+     */
+    private static boolean isPrivate(final Path directory) throws IOException {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return true;
+        }
+
+        final PosixFileAttributes attributes = Files.readAttributes(directory, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        return attributes.isDirectory()
+            && attributes.owner().equals(FileSystems.getDefault().getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name")))
+            && attributes.permissions().equals(OWNER_ONLY);
+    }
+
+    /**
+     * Serve commands until the process is killed
+     *
+     * @param args '--daemon [socket]'
+     */
+    public static void start(final String[] args) {
+        final Path socket = args.length > 1 ? Paths.get(args[1]) : defaultSocket();
+
+        try (
+            ServerSocketChannel server = bind(socket);
+        ) {
+            System.out.println("httpc daemon listening on " + socket);
+
+            while (true) {
+                final SocketChannel client = server.accept();
+                final Thread thread = new Thread(() -> serve(client), "httpc-daemon-client");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            throw new HttpcException("Error listening on " + socket, e);
+        }
+    }
+
+    /**
+     * Listen on the socket, replacing the file a dead daemon left behind. Anyone
+     * who can connect runs commands as us, so only our user can reach it: the
+     * default directory must be ours and private, and the socket is bound in a
+     * private directory and only moved into place once its permissions are set.
+     */
+    private static ServerSocketChannel bind(final Path socket) throws IOException {
+        final boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        final FileAttribute<?>[] ownerOnly = posix
+            ? new FileAttribute<?>[] { PosixFilePermissions.asFileAttribute(OWNER_ONLY) }
+            : new FileAttribute<?>[0];
+        final Path directory = socket.toAbsolutePath().getParent();
+
+        if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+            Files.createDirectories(directory.getParent());
+            try {
+                // Created with its permissions, there's no moment it's open to others
+                Files.createDirectory(directory, ownerOnly);
+            } catch (FileAlreadyExistsException e) {
+                // Someone else got there first, checked below like any existing directory
+            }
+        }
+
+        if (!isTrusted(socket)) {
+            throw new HttpcException("Refusing to listen in " + directory
+                + ", it must be a directory of your own that only you can access (chmod 700)");
+        }
+
+        if (Files.exists(socket, LinkOption.NOFOLLOW_LINKS)) {
+            if (isListening(socket)) {
+                throw new HttpcException("A daemon is already listening on " + socket);
+            }
+            Files.delete(socket);
+        }
+
+        final Path staging = Files.createTempDirectory(directory, ".httpc-", ownerOnly);
+        final Path staged = staging.resolve(SOCKET_NAME);
+        final ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+
+        try {
+            server.bind(UnixDomainSocketAddress.of(staged));
+            if (posix) {
+                Files.setPosixFilePermissions(staged, PosixFilePermissions.fromString("rw-------"));
+            }
+            // The bound socket keeps listening under its new name
+            Files.move(staged, socket, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            server.close();
+            Files.deleteIfExists(staged);
+            throw e;
+        } finally {
+            Files.deleteIfExists(staging);
+        }
+        socket.toFile().deleteOnExit();
+
+        return server;
+    }
+
+    private static boolean isListening(final Path socket) {
+        SocketChannel probe = null;
+
+        try {
+            probe = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (probe != null) {
+                try {
+                    probe.close();
+                } catch (IOException e) {
+                    // Only opened to see if anyone answers
+                }
+            }
+        }
+    }
+
+    /**
+     * Read one command from the client, run it and send back its output and exit status
+     */
+    private static void serve(final SocketChannel client) {
+        try (
+            SocketChannel channel = client;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        ) {
+            final Path directory = Paths.get(readString(in));
+            final String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = readString(in);
+            }
+
+            synchronized (CONSOLE) {
+                run(args, directory, out);
+            }
+
+            // The same status 'java Httpc' exits with, which is 0 for failed commands too
+            synchronized (out) {
+                out.writeByte(EXIT);
+                out.writeInt(0);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client went away, there's no one left to tell
+        }
+    }
+
+    private static void run(final String[] args, final Path directory, final DataOutputStream out) {
+        final PrintStream console = System.out;
+        final PrintStream errors = System.err;
+        final PrintStream stdout = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, STDOUT), OUTPUT_BUFFER_SIZE));
+        final PrintStream stderr = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, STDERR), OUTPUT_BUFFER_SIZE));
+
+        System.setOut(stdout);
+        System.setErr(stderr);
+        Utils.setWorkingDirectory(directory);
+
+        try {
+            Httpc.run(args);
+        } catch (RuntimeException e) {
+            // A bug in one command shouldn't take the daemon down with it
+            e.printStackTrace(stderr);
+        } finally {
+            Utils.setWorkingDirectory(null);
+            System.setOut(console);
+            System.setErr(errors);
+            stdout.flush();
+            stderr.flush();
+        }
+    }
+
+    static String readString(final DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeString(final DataOutputStream out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Sends everything written to it to the client as frames of one stream
+     */
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte stream;
+
+        private FrameOutputStream(final DataOutputStream out, final byte stream) {
+            this.out = out;
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+
+            // Both streams share the connection, and may be written from the event loops too
+            synchronized (this.out) {
+                this.out.writeByte(this.stream);
+                this.out.writeInt(len);
+                this.out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (this.out) {
+                this.out.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/**
+ * Thin client that forwards a httpc command to a running Daemon and relays its
+ * output and exit status, eg. 'java DaemonClient get http://localhost/ -v'.
+ * It loads only a handful of classes, so it starts in a fraction of the time a
+ * full httpc takes. Without a daemon listening, the command runs in this
+ * process instead.
+ *
+ * The socket is the one named by HTTPC_SOCKET, or the daemon's default, which
+ * is only used when its directory belongs to us and is closed to others.
+ */
+public class DaemonClient {
+    public static void main(String[] args) throws IOException {
+        final Path socket = Daemon.defaultSocket();
+        final SocketChannel channel;
+
+        try {
+            // Never hand our arguments (eg. tokens in headers) to a daemon someone else may have planted
+            if (!Daemon.isTrusted(socket)) {
+                System.err.println("Not using the httpc daemon: " + socket.getParent() + " isn't private to you");
+                Httpc.main(args);
+                return;
+            }
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            Httpc.main(args);
+            return;
+        }
+
+        try (
+            channel;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        ) {
+            Daemon.writeString(out, System.getProperty("user.dir"));
+            out.writeInt(args.length);
+            for (String arg : args) {
+                Daemon.writeString(out, arg);
+            }
+            out.flush();
+
+            while (true) {
+                final byte stream = in.readByte();
+
+                if (stream == Daemon.EXIT) {
+                    final int status = in.readInt();
+                    System.out.flush();
+                    System.exit(status);
+                }
+
+                final byte[] output = new byte[in.readInt()];
+                in.readFully(output);
+                (stream == Daemon.STDERR ? System.err : System.out).write(output);
+            }
+        } catch (EOFException e) {
+            System.out.flush();
+            System.err.println("Lost the connection to the httpc daemon");
+            System.exit(1);
+        }
+    }
+}
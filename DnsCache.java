@@ -0,0 +1,167 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Resolves host names with an in-process cache shared by every request in the
+ * process, so batch and benchmark runs only look a host up once per TTL.
+ *
+ * Failed lookups are cached too (for a shorter TTL) so a dead host fails fast,
+ * concurrent lookups of the same host share a single query, and the least
+ * recently used entries are evicted once the cache is full. Hosts can also be
+ * pinned to an address, bypassing DNS entirely.
+ *
+ * The default TTLs can be set with the 'httpc.dns.ttl' and
+ * 'httpc.dns.negativeTtl' system properties, in seconds.
+ */
+public class DnsCache {
+    private static final long DEFAULT_TTL_SECONDS = Long.getLong("httpc.dns.ttl", 60);
+    private static final long DEFAULT_NEGATIVE_TTL_SECONDS = Long.getLong("httpc.dns.negativeTtl", 10);
+    private static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    private static final DnsCache DEFAULT = new DnsCache(
+        DEFAULT_TTL_SECONDS * 1000,
+        DEFAULT_NEGATIVE_TTL_SECONDS * 1000,
+        DEFAULT_MAX_ENTRIES
+    );
+
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final Map<String, Entry> entries;
+    private final Map<String, InetAddress> pins = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<InetAddress>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * @param ttlMillis         How long a successful lookup is reused for
+     * @param negativeTtlMillis How long a failed lookup is remembered for
+     * @param maxEntries        Maximum number of hosts cached before evicting the least recently used
+     */
+    public DnsCache(final long ttlMillis, final long negativeTtlMillis, final int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+
+        // Access ordered, so iteration starts from the least recently used entry
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Cache shared by every handler in this process
+     * @return
+     */
+    public static DnsCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Always resolve the host to the given address, like curl's --resolve
+     *
+     * @param host
+     * @param address
+     */
+    public void pin(final String host, final InetAddress address) {
+        this.pins.put(host.toLowerCase(), address);
+    }
+
+    public void unpin(final String host) {
+        this.pins.remove(host.toLowerCase());
+    }
+
+    /**
+     * Resolve the host, from the cache when possible
+     *
+     * @param host
+     * @return
+     * @throws UnknownHostException If the host can't be resolved, now or within the negative TTL
+     */
+    public InetAddress resolve(final String host) throws UnknownHostException {
+        final String key = host.toLowerCase();
+
+        final InetAddress pinned = this.pins.get(key);
+        if (pinned != null) {
+            return pinned;
+        }
+
+        synchronized (this.entries) {
+            final Entry entry = this.entries.get(key);
+
+            if (entry != null && entry.expiresAt > System.currentTimeMillis()) {
+                if (entry.address == null) {
+                    throw new UnknownHostException(host);
+                }
+                return entry.address;
+            }
+        }
+
+        // Only the first caller performs the lookup, everyone else waits on its result
+        final CompletableFuture<InetAddress> lookup = new CompletableFuture<>();
+        final CompletableFuture<InetAddress> existing = this.inFlight.putIfAbsent(key, lookup);
+
+        if (existing != null) {
+            return await(existing, host);
+        }
+
+        try {
+            final InetAddress address = InetAddress.getByName(host);
+            store(key, new Entry(address, System.currentTimeMillis() + this.ttlMillis));
+            lookup.complete(address);
+            return address;
+        } catch (UnknownHostException e) {
+            store(key, new Entry(null, System.currentTimeMillis() + this.negativeTtlMillis));
+            lookup.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.inFlight.remove(key);
+        }
+    }
+
+    /**
+     * Drop every cached lookup, keeping pinned hosts
+     */
+    public void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+        }
+    }
+
+    private void store(final String key, final Entry entry) {
+        synchronized (this.entries) {
+            this.entries.put(key, entry);
+        }
+    }
+
+    private static InetAddress await(final CompletableFuture<InetAddress> lookup, final String host)
+            throws UnknownHostException {
+        try {
+            return lookup.get();
+        } catch (ExecutionException e) {
+            throw new UnknownHostException(host);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException(host);
+        }
+    }
+
+    /**
+     * A cached lookup, with a null address for a failed one
+     */
+    private static class Entry {
+        private final InetAddress address;
+        private final long expiresAt;
+
+        private Entry(final InetAddress address, final long expiresAt) {
+            this.address = address;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,441 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ordered, case insensitive collection of header fields, for requests as well
+ * as parsed responses. A name may appear more than once, every value is kept
+ * in the order it was added.
+ *
+ * Names are looked up through a small open addressing table keyed on their
+ * case insensitive hash, so finding a header doesn't scan the others or
+ * allocate. Common names resolve to the constants below whatever their case,
+ * which lets a parser compare them by identity and share one String across
+ * every response.
+ *
+ * Not thread safe.
+ */
+public class Headers {
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String CACHE_CONTROL = "Cache-Control";
+    public static final String CONNECTION = "Connection";
+    public static final String CONTENT_ENCODING = "Content-Encoding";
+    public static final String CONTENT_LENGTH = "Content-Length";
+    public static final String CONTENT_RANGE = "Content-Range";
+    public static final String DATE = "Date";
+    public static final String ETAG = "ETag";
+    public static final String EXPIRES = "Expires";
+    public static final String HOST = "Host";
+    public static final String IF_RANGE = "If-Range";
+    public static final String LAST_MODIFIED = "Last-Modified";
+    public static final String RANGE = "Range";
+    public static final String TRANSFER_ENCODING = "Transfer-Encoding";
+
+    private static final String[] COMMON = {
+        "Accept", ACCEPT_ENCODING, "Accept-Language", "Accept-Ranges", "Age", "Authorization", CACHE_CONTROL,
+        CONNECTION, "Content-Disposition", CONTENT_ENCODING, CONTENT_LENGTH, CONTENT_RANGE, "Content-Type", "Cookie",
+        DATE, ETAG, EXPIRES, HOST, "If-Modified-Since", "If-None-Match", IF_RANGE, "Keep-Alive", LAST_MODIFIED,
+        "Location", RANGE, "Referer", "Server", "Set-Cookie", TRANSFER_ENCODING, "User-Agent", "Vary", "Via",
+    };
+
+    // COMMON by case insensitive hash, large enough that probes stay short
+    private static final String[] COMMON_TABLE = new String[128];
+
+    static {
+        for (String name : COMMON) {
+            int slot = hash(name) & (COMMON_TABLE.length - 1);
+            while (COMMON_TABLE[slot] != null) {
+                slot = (slot + 1) & (COMMON_TABLE.length - 1);
+            }
+            COMMON_TABLE[slot] = name;
+        }
+    }
+
+    private static final int INITIAL_CAPACITY = 8;
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    // Fields in the order they were added
+    private String[] names;
+    private String[] values;
+    private int[] hashes;
+    // Index of the next field with the same name, or -1
+    private int[] next;
+    private int size = 0;
+
+    // Index + 1 of the first field of every name, 0 for an empty slot
+    private int[] slots;
+
+    public Headers() {
+        this.names = new String[INITIAL_CAPACITY];
+        this.values = new String[INITIAL_CAPACITY];
+        this.hashes = new int[INITIAL_CAPACITY];
+        this.next = new int[INITIAL_CAPACITY];
+        this.slots = new int[INITIAL_CAPACITY * 2];
+    }
+
+    /**
+     * Copy of other headers, so either one can be changed without affecting the other
+     *
+     * @param other
+     */
+    public Headers(final Headers other) {
+        this.names = other.names.clone();
+        this.values = other.values.clone();
+        this.hashes = other.hashes.clone();
+        this.next = other.next.clone();
+        this.slots = other.slots.clone();
+        this.size = other.size;
+    }
+
+    /**
+     * Parse the header lines of a response head as returned by
+     * HttpResponseParser.getHead(), ie. the status line followed by 'Name: value'
+     * lines. Lines without a name are skipped.
+     *
+     * @param head
+     * @return
+     */
+    public static Headers parse(final String head) {
+        final Headers headers = new Headers();
+        int start = head.indexOf('\n') + 1;
+
+        while (start > 0 && start < head.length()) {
+            int end = head.indexOf('\n', start);
+            if (end < 0) {
+                end = head.length();
+            }
+
+            final int colon = head.indexOf(':', start);
+            if (colon > start && colon < end) {
+                headers.add(head.substring(start, colon).trim(), head.substring(colon + 1, end).trim());
+            }
+            start = end + 1;
+        }
+
+        return headers;
+    }
+
+    /**
+     * The shared constant for a common header name, or a new String of the name
+     *
+     * @param bytes  ISO-8859-1 encoded name
+     * @param offset
+     * @param length
+     * @return
+     */
+    public static String name(final byte[] bytes, final int offset, final int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + toLowerCase((char) (bytes[i] & 0xFF));
+        }
+        hash ^= hash >>> 16;
+
+        for (int slot = hash & (COMMON_TABLE.length - 1); COMMON_TABLE[slot] != null; slot = (slot + 1) & (COMMON_TABLE.length - 1)) {
+            final String common = COMMON_TABLE[slot];
+            if (common.length() == length && regionMatches(common, bytes, offset)) {
+                return common;
+            }
+        }
+
+        return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * The shared constant for a common header name, or the name itself
+     *
+     * @param name
+     * @return
+     */
+    public static String name(final String name) {
+        for (int slot = hash(name) & (COMMON_TABLE.length - 1); COMMON_TABLE[slot] != null; slot = (slot + 1) & (COMMON_TABLE.length - 1)) {
+            if (COMMON_TABLE[slot].equalsIgnoreCase(name)) {
+                return COMMON_TABLE[slot];
+            }
+        }
+        return name;
+    }
+
+    // ============================== ACCESS ============================== //
+
+    /**
+     * Add a field, after any others of the same name
+     *
+     * @param name
+     * @param value
+     */
+    public void add(final String name, final String value) {
+        final int hash = hash(name);
+        final int first = find(name, hash);
+
+        if (this.size == this.names.length) {
+            grow();
+        }
+
+        final int index = this.size++;
+        this.names[index] = name(name);
+        this.values[index] = value;
+        this.hashes[index] = hash;
+        this.next[index] = -1;
+
+        if (first >= 0) {
+            int last = first;
+            while (this.next[last] >= 0) {
+                last = this.next[last];
+            }
+            this.next[last] = index;
+        } else {
+            insert(index);
+        }
+    }
+
+    /**
+     * Replace every field of a name with a single one
+     *
+     * @param name
+     * @param value
+     */
+    public void set(final String name, final String value) {
+        remove(name);
+        add(name, value);
+    }
+
+    /**
+     * Remove every field of a name
+     *
+     * @param name
+     * @return Whether there were any
+     */
+    public boolean remove(final String name) {
+        final int hash = hash(name);
+        if (find(name, hash) < 0) {
+            return false;
+        }
+
+        // Rare enough to simply compact the fields and rebuild the table
+        int kept = 0;
+        for (int i = 0; i < this.size; i++) {
+            if (this.hashes[i] != hash || !this.names[i].equalsIgnoreCase(name)) {
+                this.names[kept] = this.names[i];
+                this.values[kept] = this.values[i];
+                this.hashes[kept] = this.hashes[i];
+                kept++;
+            }
+        }
+        Arrays.fill(this.names, kept, this.size, null);
+        Arrays.fill(this.values, kept, this.size, null);
+        this.size = kept;
+
+        reindex();
+        return true;
+    }
+
+    /**
+     * Remove every field
+     */
+    public void clear() {
+        Arrays.fill(this.names, 0, this.size, null);
+        Arrays.fill(this.values, 0, this.size, null);
+        Arrays.fill(this.slots, 0);
+        this.size = 0;
+    }
+
+    /**
+     * First value of a header
+     *
+     * @param name Case insensitive
+     * @return The value, or null if the header isn't there
+     */
+    public String get(final String name) {
+        final int index = find(name, hash(name));
+        return index >= 0 ? this.values[index] : null;
+    }
+
+    /**
+     * Every value of a header, in the order they were added
+     *
+     * @param name Case insensitive
+     * @return
+     */
+    public List<String> getAll(final String name) {
+        int index = find(name, hash(name));
+        if (index < 0) {
+            return Collections.emptyList();
+        }
+
+        final List<String> all = new ArrayList<>(1);
+        for (; index >= 0; index = this.next[index]) {
+            all.add(this.values[index]);
+        }
+        return all;
+    }
+
+    public boolean contains(final String name) {
+        return find(name, hash(name)) >= 0;
+    }
+
+    /**
+     * Number of fields, counting every value of a name
+     * @return
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Name of a field as it was added, or its common spelling
+     *
+     * @param index From 0 to size() - 1, in the order the fields were added
+     * @return
+     */
+    public String getName(final int index) {
+        return this.names[index];
+    }
+
+    public String getValue(final int index) {
+        return this.values[index];
+    }
+
+    // ============================== ENCODING ============================== //
+
+    /**
+     * Every field as a 'Name:value\r\n' line, without going through an intermediate
+     * String. Names and values are ASCII in practice, anything else is sent as UTF-8.
+     *
+     * @return
+     */
+    public byte[] encode() {
+        int length = 0;
+        for (int i = 0; i < this.size; i++) {
+            length += encodedLength(this.names[i]) + 1 + encodedLength(this.values[i]) + CRLF.length;
+        }
+
+        final byte[] encoded = new byte[length];
+        int position = 0;
+        for (int i = 0; i < this.size; i++) {
+            position = put(encoded, position, this.names[i]);
+            encoded[position++] = ':';
+            position = put(encoded, position, this.values[i]);
+            encoded[position++] = CRLF[0];
+            encoded[position++] = CRLF[1];
+        }
+
+        return encoded;
+    }
+
+    private static int encodedLength(final String text) {
+        return isAscii(text) ? text.length() : text.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static int put(final byte[] destination, final int position, final String text) {
+        if (!isAscii(text)) {
+            final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(bytes, 0, destination, position, bytes.length);
+            return position + bytes.length;
+        }
+
+        for (int i = 0; i < text.length(); i++) {
+            destination[position + i] = (byte) text.charAt(i);
+        }
+        return position + text.length();
+    }
+
+    private static boolean isAscii(final String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ============================== TABLE ============================== //
+
+    /**
+     * @return Index of the first field of the name, or -1
+     */
+    private int find(final String name, final int hash) {
+        final int mask = this.slots.length - 1;
+
+        for (int slot = hash & mask; this.slots[slot] != 0; slot = (slot + 1) & mask) {
+            final int index = this.slots[slot] - 1;
+            if (this.hashes[index] == hash && this.names[index].equalsIgnoreCase(name)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(final int index) {
+        final int mask = this.slots.length - 1;
+        int slot = this.hashes[index] & mask;
+
+        while (this.slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        this.slots[slot] = index + 1;
+    }
+
+    private void grow() {
+        final int capacity = this.names.length * 2;
+        this.names = Arrays.copyOf(this.names, capacity);
+        this.values = Arrays.copyOf(this.values, capacity);
+        this.hashes = Arrays.copyOf(this.hashes, capacity);
+        this.next = Arrays.copyOf(this.next, capacity);
+        // At most half full, so a lookup for a missing name ends quickly
+        this.slots = new int[capacity * 2];
+        reindex();
+    }
+
+    private void reindex() {
+        Arrays.fill(this.slots, 0);
+
+        for (int i = 0; i < this.size; i++) {
+            this.next[i] = -1;
+            final int first = find(this.names[i], this.hashes[i]);
+
+            if (first < 0) {
+                insert(i);
+                continue;
+            }
+
+            int last = first;
+            while (this.next[last] >= 0) {
+                last = this.next[last];
+            }
+            this.next[last] = i;
+        }
+    }
+
+    private static int hash(final String name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            hash = 31 * hash + toLowerCase(name.charAt(i));
+        }
+        // Spread the high bits, the table only uses the low ones
+        return hash ^ (hash >>> 16);
+    }
+
+    private static char toLowerCase(final char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static boolean regionMatches(final String name, final byte[] bytes, final int offset) {
+        for (int i = 0; i < name.length(); i++) {
+            if (toLowerCase(name.charAt(i)) != toLowerCase((char) (bytes[offset + i] & 0xFF))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < this.size; i++) {
+            builder.append(i > 0 ? ", " : "").append(this.names[i]).append(':').append(this.values[i]);
+        }
+        return builder.append(']').toString();
+    }
+}
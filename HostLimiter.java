@@ -0,0 +1,269 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Limits how many requests are in flight to each host, adapting the limit to
+ * how the host copes (additive increase, multiplicative decrease):
+ *
+ *   - While nothing went wrong yet, the limit grows by one per response (slow start)
+ *   - Afterwards it grows by 1/limit per response, ie. about one per round of requests
+ *   - An error or a 429/503 halves it
+ *   - Latency that stays well above the host's usual latency for a whole round
+ *     of requests shrinks it by a tenth, but not below the initial limit
+ *
+ * Latency is smoothed twice: a short term average of recent responses is
+ * compared with a long term baseline, which follows the average down at once
+ * but up only slowly, so it holds the host's unloaded latency while still
+ * adjusting to a host that got slower for good. Jitter of single responses
+ * doesn't count, only a lasting slowdown does, and hosts answering within a
+ * few milliseconds aren't slowed down by latency at all, loopback and LAN
+ * noise would otherwise look like overload.
+ *
+ * The limit only drops once for the requests that were in flight together, so
+ * a burst of failures caused by one overload doesn't collapse it to nothing.
+ *
+ * Requests over the limit wait in a bounded queue per host, as futures rather
+ * than blocked threads, and are let through in order as responses complete.
+ */
+public class HostLimiter {
+    private static final double INITIAL_LIMIT = 4;
+    private static final double MIN_LIMIT = 1;
+    private static final double ERROR_BACKOFF = 0.5;
+    private static final double LATENCY_BACKOFF = 0.9;
+    // Recent latency this many times the usual means requests are queueing at the host
+    private static final double LATENCY_TOLERANCE = 2.0;
+    // Weight of a new sample in the short term latency average
+    private static final double SHORT_TERM_WEIGHT = 0.1;
+    // Weight of the short term average when the baseline rises towards it
+    private static final double BASELINE_WEIGHT = 0.002;
+    // Latency below this is never treated as congestion
+    private static final long MIN_CONGESTED_NANOS = 5_000_000;
+    // Fewest responses in a row that must be slow before the limit drops, a round of requests when the limit is higher
+    private static final int MIN_CONGESTED_RESPONSES = 10;
+
+    private final int maxLimit;
+    private final int maxQueued;
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxLimit  Most requests in flight to one host, however well it copes
+     * @param maxQueued Most requests waiting for one host, more are rejected
+     */
+    public HostLimiter(final int maxLimit, final int maxQueued) {
+        this.maxLimit = maxLimit;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Wait for the host to be under its limit
+     *
+     * @param route Scheme, host and port, eg. 'http://localhost:8080'
+     * @return Completes with the permit to send the request with, or exceptionally with
+     *         an HttpcException if too many requests are waiting for the host already
+     */
+    public CompletableFuture<Permit> acquire(final String route) {
+        return this.hosts.computeIfAbsent(route, Host::new).acquire();
+    }
+
+    public Collection<Host> getHosts() {
+        return this.hosts.values();
+    }
+
+    /**
+     * The right to send one request to a host. Release it once the response is done.
+     */
+    public static class Permit {
+        private final Host host;
+        private final long granted;
+        private long responded = -1;
+        private boolean released = false;
+
+        private Permit(final Host host, final long granted) {
+            this.host = host;
+            this.granted = granted;
+        }
+
+        /**
+         * Mark the response head arriving. Latency counts up to here when it's
+         * marked, so the size of the body doesn't read as the host being slow.
+         */
+        public void responded() {
+            this.responded = System.nanoTime();
+        }
+
+        /**
+         * @param overloaded Whether the host failed the request or asked us to back off (429/503)
+         */
+        public void release(final boolean overloaded) {
+            if (this.released) {
+                return;
+            }
+            this.released = true;
+
+            final long end = this.responded >= 0 ? this.responded : System.nanoTime();
+            this.host.release(this.granted, end - this.granted, overloaded);
+        }
+
+        /**
+         * Give the permit back without the request counting for or against the
+         * host, eg. when it failed before reaching it
+         */
+        public void cancel() {
+            if (this.released) {
+                return;
+            }
+            this.released = true;
+
+            this.host.release(this.granted, -1, false);
+        }
+    }
+
+    /**
+     * Limit and queue of one host
+     */
+    public class Host {
+        private final String route;
+        private final ArrayDeque<CompletableFuture<Permit>> waiting = new ArrayDeque<>();
+
+        private double limit = Math.min(INITIAL_LIMIT, maxLimit);
+        private int inFlight = 0;
+        private boolean slowStart = true;
+        private long lastDecrease = Long.MIN_VALUE;
+        private double shortTermLatency = -1;
+        private double baselineLatency = -1;
+        private int congestedResponses = 0;
+
+        private int peakWaiting = 0;
+        private long rejected = 0;
+        private long decreases = 0;
+
+        private Host(final String route) {
+            this.route = route;
+        }
+
+        private CompletableFuture<Permit> acquire() {
+            synchronized (this) {
+                if (this.inFlight < (int) this.limit) {
+                    this.inFlight++;
+                    return CompletableFuture.completedFuture(new Permit(this, System.nanoTime()));
+                }
+
+                if (this.waiting.size() >= maxQueued) {
+                    this.rejected++;
+                    return CompletableFuture.failedFuture(
+                        new HttpcException("Too many requests waiting for " + this.route));
+                }
+
+                final CompletableFuture<Permit> permit = new CompletableFuture<>();
+                this.waiting.add(permit);
+                this.peakWaiting = Math.max(this.peakWaiting, this.waiting.size());
+                return permit;
+            }
+        }
+
+        /**
+         * @param latency Negative when the request never reached the host, the limit stays as it is then
+         */
+        private void release(final long granted, final long latency, final boolean overloaded) {
+            final List<CompletableFuture<Permit>> ready = new ArrayList<>();
+
+            synchronized (this) {
+                final boolean limited = this.inFlight >= (int) this.limit;
+                this.inFlight--;
+
+                if (latency < 0) {
+                    // Tells nothing about the host
+                } else if (overloaded) {
+                    decrease(ERROR_BACKOFF, MIN_LIMIT, granted);
+                } else if (isCongested(latency)) {
+                    if (++this.congestedResponses >= Math.max(MIN_CONGESTED_RESPONSES, (int) this.limit)) {
+                        this.congestedResponses = 0;
+                        decrease(LATENCY_BACKOFF, Math.min(INITIAL_LIMIT, maxLimit), granted);
+                    }
+                } else {
+                    this.congestedResponses = 0;
+
+                    if (limited) {
+                        // Only grow a limit that's actually in use
+                        this.limit = Math.min(maxLimit, this.limit + (this.slowStart ? 1 : 1 / this.limit));
+                    }
+                }
+
+                while (this.inFlight < (int) this.limit && !this.waiting.isEmpty()) {
+                    this.inFlight++;
+                    ready.add(this.waiting.poll());
+                }
+            }
+
+            // Outside the lock, whatever runs on completion may come straight back for another permit
+            for (CompletableFuture<Permit> permit : ready) {
+                permit.complete(new Permit(this, System.nanoTime()));
+            }
+        }
+
+        /**
+         * Add a response's latency to the averages
+         *
+         * @return Whether recent responses are much slower than usual
+         */
+        private boolean isCongested(final long latency) {
+            if (this.shortTermLatency < 0) {
+                this.shortTermLatency = this.baselineLatency = latency;
+                return false;
+            }
+
+            this.shortTermLatency += SHORT_TERM_WEIGHT * (latency - this.shortTermLatency);
+            this.baselineLatency = this.shortTermLatency < this.baselineLatency
+                ? this.shortTermLatency
+                : this.baselineLatency + BASELINE_WEIGHT * (this.shortTermLatency - this.baselineLatency);
+
+            return this.shortTermLatency > MIN_CONGESTED_NANOS
+                && this.shortTermLatency > this.baselineLatency * LATENCY_TOLERANCE;
+        }
+
+        /**
+         * Shrink the limit, unless it already shrank after this request was let through
+         *
+         * @param floor Lowest the limit goes, it isn't raised if it's below already
+         */
+        private void decrease(final double factor, final double floor, final long granted) {
+            if (granted <= this.lastDecrease) {
+                return;
+            }
+
+            this.slowStart = false;
+            this.limit = Math.max(Math.min(this.limit, floor), this.limit * factor);
+            this.lastDecrease = System.nanoTime();
+            this.decreases++;
+        }
+
+        public String getRoute() {
+            return this.route;
+        }
+
+        public synchronized double getLimit() {
+            return this.limit;
+        }
+
+        /**
+         * Most requests that were waiting for the host at once
+         * @return
+         */
+        public synchronized int getPeakWaiting() {
+            return this.peakWaiting;
+        }
+
+        public synchronized long getRejected() {
+            return this.rejected;
+        }
+
+        public synchronized long getDecreases() {
+            return this.decreases;
+        }
+    }
+}
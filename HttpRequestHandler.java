@@ -1,9 +1,18 @@
-import java.io.PrintWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.util.List;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import javax.net.ssl.SSLHandshakeException;
 
 import constants.Method;
 
@@ -13,156 +22,765 @@ import constants.Method;
  */
 public class HttpRequestHandler {
     private final Request request;
-    private String formattedRequest;
+    private final ConnectionPool pool;
+    private final DnsCache dnsCache;
+    private RequestTemplate template;
+    private byte[] body;
+    private Path bodyFile;
+    private long bodyLength = -1;
     private String responseHeaders;
-    private String response;
 
-    private final String HTTP_PROTOCOL = "HTTP/1.0";
-    private final int HTTP_PORT = 80;
+    // Response cache state, only used when the request opts in to a cache directory
+    private ResponseCache cache;
+    private ResponseCache.Entry cached;
+    private byte[] conditionalHeaders;
+    private boolean fromCache = false;
+
+    // Where a non-blocking request goes, and the status and headers it got back
+    private InetAddress address;
+    private volatile int asyncStatus = 0;
+    private volatile HttpResponseParser asyncParser;
+
+    // Connection whose response is being streamed, between submitRequest() and outputResponse()
+    private ConnectionPool.Connection connection;
+    private boolean pooled = false;
+    // Owned by a pipeline sharing it between several handlers, never released by this one
+    private boolean borrowed = false;
+    private final HttpResponseParser parser = new HttpResponseParser();
+
+    // An already encoded request sent in place of the template's, eg. when replaying a TrafficLog
+    private ByteBuffer rawRequest;
+
+    // Where the exchange is recorded, and the request and response body as they went over the wire
+    private TrafficLog recorder;
+    private byte[] sentRequest;
+    private ByteArrayOutputStream receivedBody;
+
+    // Per phase timings of the last submission, and where the response started in the connection's input
+    private final Timings timings = new Timings();
+    private long responseStart = 0;
 
     public HttpRequestHandler(Request request) {
+        this(request, ConnectionPool.getDefault());
+    }
+
+    /**
+     * @param request
+     * @param pool    Pool to lease connections from when the request uses HTTP/1.1
+     */
+    public HttpRequestHandler(Request request, ConnectionPool pool) {
+        this(request, pool, DnsCache.getDefault());
+    }
+
+    /**
+     * @param request
+     * @param pool     Pool to lease connections from when the request uses HTTP/1.1
+     * @param dnsCache Cache to resolve the host through
+     */
+    public HttpRequestHandler(Request request, ConnectionPool pool, DnsCache dnsCache) {
         this.request = request;
+        this.pool = pool;
+        this.dnsCache = dnsCache;
     }
 
+    /**
+     * Prepare the request for sending. The method, protocol and headers come
+     * pre-encoded from the request's template, so all that's left per request
+     * is the body and its length.
+     */
     public HttpRequestHandler formatRequest() {
-        StringBuilder requestBuilder = new StringBuilder();
-        List<String> headers = this.request.getHeaders();
-        String body = this.request.getBody();
+        this.template = this.request.getTemplate();
+        this.body = null;
+        this.bodyFile = null;
+        this.bodyLength = -1;
+        this.rawRequest = null;
+        this.sentRequest = null;
+        this.recorder = this.request.getRecordFile() != null
+            ? TrafficLog.forFile(Utils.resolvePath(this.request.getRecordFile()))
+            : null;
+
+        // Handle POST entity body, either inline or streamed from a file when sending
+        if (!this.template.hasBody()) {
+            return this;
+        }
+
+        final Path bodyFile = this.request.getBodyFile();
+        final String inlineBody = this.request.getBody();
+
+        if (bodyFile != null) {
+            try {
+                // A compressed file body is gzipped to a temporary file once, so its length is known up front
+                this.bodyFile = this.request.isCompressBody() ? this.request.getCompressedBodyFile() : bodyFile;
+                this.bodyLength = Files.size(this.bodyFile);
+            } catch (IOException e) {
+                throw new HttpcException("Error reading file: " + bodyFile, e);
+            }
+        } else if (inlineBody != null) {
+            this.body = inlineBody.getBytes(StandardCharsets.UTF_8);
+            if (this.request.isCompressBody()) {
+                this.body = Utils.gzip(this.body);
+            }
+            this.bodyLength = this.body.length;
+        }
+
+        return this;
+    }
+
+    /**
+     * Prepare to send a request that's already encoded, eg. one from a TrafficLog.
+     * It's sent byte for byte, the Request only says where to and over which protocol.
+     *
+     * @param raw The whole request, body included, sent from its position to its limit
+     */
+    public HttpRequestHandler formatRaw(final ByteBuffer raw) {
+        this.template = null;
+        this.body = null;
+        this.bodyFile = null;
+        this.bodyLength = -1;
+        this.rawRequest = raw;
+        this.sentRequest = null;
+        this.recorder = null;
+        return this;
+    }
 
-        // Format our request line
-        // METHOD URL HTTPVER -> 'GET /get?assignment=1 HTTP/1.0'
-        requestBuilder.append(
-            String.format("%s %s %s\r\n", 
-                request.getMethod().toString(), 
-                request.getPath(), 
-                HTTP_PROTOCOL
-            )
-        ); 
+    public HttpRequestHandler submitRequest() {
+        final String host = this.request.getHost();
+        this.timings.start();
 
-        // Check to see that the Content-Length header was defined, and if not, insert it if necessary
-        applyContentLength(headers, body);
+        // The non-blocking engine sends and receives in one go once we know where the output goes
+        if (this.request.isNonBlocking()) {
+            if (this.request.isSecure()) {
+                throw new HttpcException("Non-blocking requests don't support https URLs");
+            }
 
-        // If we have any headers, iterate through them and append them
-        headers
-            .stream()
-            .forEach( header -> requestBuilder.append(header + "\r\n") );
+            this.address = resolveHost();
+            this.timings.markResolved();
+            return this;
+        }
 
-        // Line seperator between headers and body (Or signalling end of file if a get request)
-        requestBuilder.append("\r\n");
+        // A fresh cached response doesn't need the network at all
+        if (lookupCache()) {
+            return this;
+        }
 
-        // Handle POST entity body
-        
-        Method requestMethod = this.request.getMethod();
+        final InetAddress web = resolveHost();
+        this.timings.markResolved();
 
-        if (requestMethod.equals(Method.POST) && body != null) {
-            requestBuilder.append(body);
+        if (this.request.isKeepAlive()) {
+            return submitPersistentRequest(web);
         }
 
-        this.formattedRequest = requestBuilder.toString();
+        try {
+            // Plain HTTP/1.0 connections carry a single request and are never pooled
+            this.connection = ConnectionPool.open(web, host, this.request.getPort(), this.request.isSecure());
+            this.pooled = false;
+            markConnected(this.connection);
+
+            exchange();
+        } catch (SSLHandshakeException e) {
+            releaseConnection();
+            Metrics.getDefault().recordError();
+            throw new HttpcException("TLS handshake with " + host + " failed: " + e.getMessage(), e);
+        } catch (IOException e) {
+            releaseConnection();
+            Metrics.getDefault().recordError();
+            throw new HttpcException("Error communicating with host", e);
+        }
 
         return this;
     }
 
-    public HttpRequestHandler submitRequest() {
+    /**
+     * Send the request through the non-blocking engine, which writes the response
+     * to the sink from one of its event loop threads. Doesn't use the connection
+     * pool or the response cache.
+     *
+     * @param sink Destination of the response (and its head, for verbose requests)
+     * @return Completes with the status code once the whole response is in the sink
+     */
+    public CompletableFuture<Integer> sendAsync(final OutputStream sink) {
+        final InetAddress web = this.address != null ? this.address : resolveHost();
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+
+        try {
+            this.template.writeTo(head, this.request.getPath(), null, this.body, this.bodyLength);
+        } catch (IOException e) {
+            // Writing to memory doesn't fail
+            throw new IllegalStateException(e);
+        }
+
+        final NioEngine.Exchange exchange = new NioEngine.Exchange(
+            new InetSocketAddress(web, this.request.getPort()),
+            head.toByteArray(),
+            this.bodyFile,
+            sink,
+            this.request.isVerbose(),
+            this.request.isCompressed()
+        );
+        exchange.setTimings(this.timings);
+
+        return NioEngine.getDefault()
+            .execute(exchange)
+            .whenComplete((status, error) -> {
+                this.asyncStatus = status != null ? status : 0;
+                this.asyncParser = exchange.getParser();
+                this.responseHeaders = this.asyncParser.getHead();
+                if (error == null) {
+                    finish(this.asyncStatus);
+                } else {
+                    Metrics.getDefault().recordError();
+                }
+            });
+    }
+
+    /**
+     * Attempt to resolve our provided host URL, unless it was pinned to an address
+     */
+    InetAddress resolveHost() {
         final String host = this.request.getHost();
-        StringBuilder responseBuilder = new StringBuilder();
+        final InetAddress pinned = this.request.getResolve(host, this.request.getPort());
+
+        if (pinned != null) {
+            return pinned;
+        }
 
-        // Attempt to connect to our provided host URL
-        InetAddress web = null;
         try {
-            web = InetAddress.getByName(host);
+            return this.dnsCache.resolve(host);
         } catch (UnknownHostException e) {
-            System.out.println("Error connecting to host: " + host);
-            e.printStackTrace();
-            System.exit(0);
-        }
-
-        try (
-            Socket connection = new Socket(web, HTTP_PORT);
-            PrintWriter outputStream = new PrintWriter(connection.getOutputStream());
-            Scanner inputStream = new Scanner(connection.getInputStream());
-        ) {
-            // Submit our request
-            outputStream.write(this.formattedRequest);
-            outputStream.flush();
-
-            // Store the response in our string variables
-            String currentLine;
-            boolean headersCaptured = false;
-            while(inputStream.hasNextLine()) {
-                currentLine = inputStream.nextLine();
-
-                // Check for our seperator between the headers (technically our verbose output) and the entity body
-                if (currentLine.trim().equals("") && !headersCaptured) {
-                    this.responseHeaders = responseBuilder.toString();
-
-                    // Reset the buffer
-                    responseBuilder.setLength(0);
-                    headersCaptured = true;
+            Metrics.getDefault().recordError();
+            throw new HttpcException("Error connecting to host: " + host, e);
+        }
+    }
+
+    /**
+     * Check the response cache, if the request uses one. A stale entry that can be
+     * revalidated turns the request into a conditional one.
+     *
+     * @return True if the response will be served from the cache without a request
+     */
+    private boolean lookupCache() {
+        this.cache = null;
+        this.cached = null;
+        this.conditionalHeaders = null;
+        this.fromCache = false;
+
+        final String cacheDirectory = this.request.getCacheDirectory();
+        if (cacheDirectory == null || this.template.getMethod() != Method.GET) {
+            return false;
+        }
+
+        this.cache = new ResponseCache(Utils.resolvePath(cacheDirectory));
+        final ResponseCache.Entry entry = this.cache.lookup(
+            this.template.getMethod().toString(), cacheHost(), this.request.getPath()
+        );
+
+        if (entry == null) {
+            return false;
+        }
+
+        if (entry.isFresh()) {
+            this.cached = entry;
+            this.fromCache = true;
+            this.responseHeaders = entry.getHead();
+            return true;
+        }
+
+        if (entry.hasValidator()) {
+            this.cached = entry;
+            this.conditionalHeaders = ResponseCache.conditionalHeaders(entry);
+        }
+
+        return false;
+    }
+
+    /**
+     * Host the response cache keys the request by, https ones apart from plain http
+     */
+    private String cacheHost() {
+        return this.request.isSecure() ? "https://" + this.template.getHost() : this.template.getHost();
+    }
+
+    /**
+     * Submit the request over a pooled HTTP/1.1 connection. The response has to be
+     * read exactly up to the end of its body so the connection can carry the next one.
+     */
+    private HttpRequestHandler submitPersistentRequest(final InetAddress web) {
+        this.pooled = true;
+
+        try {
+            this.connection = pool.acquire(web, this.request.getHost(), this.request.getPort(), this.request.isSecure());
+            markConnected(this.connection);
+
+            try {
+                exchange();
+            } catch (IOException e) {
+                // The server may have closed an idle connection on us, retry once on a fresh one
+                final boolean retry = this.connection.isReused();
+                releaseConnection();
+
+                if (!retry) {
+                    throw e;
                 }
 
-                responseBuilder.append(currentLine + "\n");
+                this.timings.retry();
+                this.connection = pool.acquire(web, this.request.getHost(), this.request.getPort(), this.request.isSecure());
+                markConnected(this.connection);
+                exchange();
             }
+        } catch (SSLHandshakeException e) {
+            releaseConnection();
+            Metrics.getDefault().recordError();
+            throw new HttpcException("TLS handshake with " + this.request.getHost() + " failed: " + e.getMessage(), e);
+        } catch (IOException e) {
+            releaseConnection();
+            Metrics.getDefault().recordError();
+            throw new HttpcException("Error communicating with host", e);
+        }
+
+        return this;
+    }
 
-            // Store our entity body response
-            this.response = responseBuilder.toString();
+    /**
+     * Mark the connection as ready, its handshake only counts if it was opened for this request
+     */
+    private void markConnected(final ConnectionPool.Connection connection) {
+        this.timings.markConnected(connection.isReused(), connection.isReused() ? 0 : connection.getHandshakeNanos());
+    }
 
-        } catch (Exception e) {
-            System.out.println("Error communicating with host");
-            System.exit(0);
+    /**
+     * Write the request to the connection and read back the response head,
+     * leaving the body unread in the connection
+     */
+    private void exchange() throws IOException {
+        final long sent = writeRequest(this.connection, this.conditionalHeaders);
+        this.connection.getOutputStream().flush();
+
+        this.timings.addBytesSent(sent);
+        this.timings.markSent();
+
+        readHead();
+    }
+
+    /**
+     * Write the request to a connection shared with other pipelined requests,
+     * without flushing so the whole pipeline goes out together. Only requests
+     * without a body are pipelined.
+     *
+     * @param connection
+     * @throws IOException
+     */
+    void writePipelined(final ConnectionPool.Connection connection) throws IOException {
+        this.timings.start();
+        markConnected(connection);
+        this.timings.addBytesSent(writeRequest(connection, null));
+
+        // Flushed together with the rest of the pipeline, so later responses include waiting behind earlier ones
+        this.timings.markSent();
+    }
+
+    /**
+     * Write the request and its body, keeping a copy when it's recorded
+     *
+     * @return Number of bytes written
+     * @throws IOException
+     */
+    private long writeRequest(final ConnectionPool.Connection connection, final byte[] conditionalHeaders) throws IOException {
+        if (this.rawRequest != null) {
+            return connection.send(this.rawRequest.duplicate());
         }
 
-        return this;
+        final OutputStream out = connection.getOutputStream();
+        final ByteArrayOutputStream copy = this.recorder != null ? new ByteArrayOutputStream() : null;
+        long sent;
+
+        if (copy != null) {
+            sent = this.template.writeTo(copy, this.request.getPath(), conditionalHeaders, this.body, this.bodyLength);
+            copy.writeTo(out);
+        } else {
+            sent = this.template.writeTo(out, this.request.getPath(), conditionalHeaders, this.body, this.bodyLength);
+        }
+
+        if (this.bodyFile != null) {
+            sent += connection.sendFile(this.bodyFile, this.bodyLength);
+            if (copy != null) {
+                Files.copy(this.bodyFile, copy);
+            }
+        }
+
+        if (copy != null) {
+            this.sentRequest = copy.toByteArray();
+        }
+        return sent;
+    }
+
+    /**
+     * Read this request's response head from a pipelined connection, ready for
+     * outputResponse(). The connection stays with the pipeline afterwards.
+     *
+     * @param connection
+     * @throws IOException
+     */
+    void readPipelined(final ConnectionPool.Connection connection) throws IOException {
+        this.connection = connection;
+        this.borrowed = true;
+        readHead();
+    }
+
+    /**
+     * Whether the last response was read exactly to its end, and the server
+     * will accept another request on its connection
+     * @return
+     */
+    boolean isConnectionReusable() {
+        return this.parser.isDone() && this.parser.isReusable();
+    }
+
+    /**
+     * Read back the response head, leaving the body unread in the connection
+     */
+    private void readHead() throws IOException {
+        final ByteBuffer input = this.connection.getReadBuffer();
+        this.parser.reset(true);
+        this.receivedBody = this.recorder != null ? new ByteArrayOutputStream() : null;
+
+        // Anything already buffered (eg. a pipelined response) belongs to this response
+        this.responseStart = this.connection.getBytesRead() - input.remaining();
+        if (!input.hasRemaining() && !this.connection.fill()) {
+            this.parser.endOfInput();
+        }
+        this.timings.markFirstByte();
+
+        while (!this.parser.parseHead(input)) {
+            if (!this.connection.fill()) {
+                this.parser.endOfInput();
+            }
+        }
+
+        this.responseHeaders = this.parser.getHead();
+
+        // Our cached copy is still good, serve it instead of the empty 304
+        if (this.cached != null && this.parser.getStatusCode() == 304) {
+            this.cache.revalidated(this.cached, this.parser);
+            this.responseHeaders = this.cached.getHead();
+            this.fromCache = true;
+        }
     }
 
     /**
      * Outputs the response based on the users command line requets:
-     * Handles verbose output and file output.
+     * Handles verbose output and file output. The body is streamed from the
+     * connection through a fixed size buffer, so it is never held in memory
+     * as a whole and binary payloads pass through untouched.
      */
     public void outputResponse() {
         final String maybeFile = this.request.getOutputFile();
 
-        // Format our output based on whether they selected verbose output or not
-        String output = String.format("%s%s", 
-            this.request.isVerbose() ? responseHeaders : "", 
-            response
+        // If an output file is defined, write to it otherwise, output to console
+        if (maybeFile == null) {
+            outputResponse(System.out);
+            return;
+        }
+
+        OutputStream sink = null;
+        try {
+            sink = Utils.openOutputFile(maybeFile);
+        } catch (IOException e) {
+            releaseConnection();
+            throw new HttpcException("Error writing to file: " + maybeFile, e);
+        }
+
+        try {
+            outputResponse(sink);
+        } finally {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                // The sink was flushed on success, on failure the original error is the one worth reporting
+            }
+        }
+    }
+
+    /**
+     * Stream the response to the given sink instead of the console or output file,
+     * eg. a null stream when only the timing of the exchange matters
+     *
+     * @param sink Left open once the response has been written
+     */
+    public void outputResponse(final OutputStream sink) {
+        if (this.request.isNonBlocking()) {
+            try {
+                sendAsync(sink).join();
+            } catch (CompletionException e) {
+                throw new HttpcException("Error communicating with host", e.getCause());
+            }
+            return;
+        }
+
+        boolean complete = false;
+        ResponseCache.Pending pending = null;
+
+        try {
+            // The blank separator line between the headers and the body is part of the verbose output
+            if (this.request.isVerbose()) {
+                sink.write((this.responseHeaders + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+
+            if (this.fromCache) {
+                // Drain what's left of a 304 so the connection can be reused
+                if (this.connection != null) {
+                    writeBody(OutputStream.nullOutputStream());
+                }
+
+                // Stored as it came over the wire, so it may still need decoding
+                final ContentDecoder decoder = cachedDecoderFor(this.cached.getHeader(Headers.CONTENT_ENCODING), sink);
+
+                try (
+                    InputStream cachedBody = this.cached.openBody();
+                ) {
+                    cachedBody.transferTo(decoder != null ? decoder : sink);
+                }
+                if (decoder != null) {
+                    decoder.finish();
+                }
+            } else {
+                pending = this.cache != null
+                    ? this.cache.begin(this.template.getMethod().toString(), cacheHost(), this.request.getPath(), this.parser)
+                    : null;
+
+                // The cache gets the body still encoded, to match the headers stored with it
+                final ContentDecoder decoder = decoderFor(this.parser.getHeader("Content-Encoding"), sink);
+                final OutputStream decoded = decoder != null ? decoder : sink;
+
+                writeBody(pending != null ? new TeeOutputStream(decoded, pending.getOutputStream()) : decoded);
+                if (decoder != null) {
+                    decoder.finish();
+                }
+            }
+
+            sink.flush();
+            complete = true;
+
+            if (this.connection != null) {
+                final long consumed = this.connection.getBytesRead() - this.connection.getReadBuffer().remaining();
+                this.timings.addBytesReceived(consumed - this.responseStart);
+            }
+            finish(getStatusCode());
+        } catch (IOException e) {
+            Metrics.getDefault().recordError();
+            throw new HttpcException("Error communicating with host", e);
+        } finally {
+            if (pending != null) {
+                if (complete) {
+                    this.cache.commit(pending);
+                } else {
+                    this.cache.abort(pending);
+                }
+            }
+
+            // A connection with part of a response left in it can't be handed to anyone else
+            if (!complete) {
+                this.parser.reset(true);
+            }
+            releaseConnection();
+        }
+    }
+
+    /**
+     * Status code of the submitted request's response
+     * @return
+     */
+    public int getStatusCode() {
+        if (this.request.isNonBlocking()) {
+            return this.asyncStatus;
+        }
+        return this.fromCache ? 200 : this.parser.getStatusCode();
+    }
+
+    /**
+     * Timings of the last submitted request, complete once its response has been output
+     * @return
+     */
+    public Timings getTimings() {
+        return this.timings;
+    }
+
+    /**
+     * Close the request's timings once its response is complete and add it to the process metrics
+     *
+     * @param statusCode
+     */
+    private void finish(final int statusCode) {
+        this.timings.markDone(statusCode);
+        Metrics.getDefault().recordRequest(
+            statusCode, this.timings.getTotalNanos(), this.timings.getBytesSent(), this.timings.getBytesReceived()
         );
+        reportTimings();
+        record();
+    }
+
+    /**
+     * Append the exchange to the request's traffic log, if it went over the network
+     */
+    private void record() {
+        if (this.recorder == null || this.sentRequest == null) {
+            return;
+        }
+
+        try {
+            this.recorder.append(this.request, this.timings, this.sentRequest, this.parser.getHead(),
+                this.receivedBody != null ? this.receivedBody.toByteArray() : new byte[0]);
+        } catch (IOException e) {
+            throw new HttpcException("Error writing to traffic log: " + this.recorder.getFile(), e);
+        } finally {
+            this.sentRequest = null;
+        }
+    }
+
+    /**
+     * Print the request's timings if it asked for them: a '-w' format to the
+     * console, and a JSON line to stderr so it can be collected apart from the output
+     */
+    private void reportTimings() {
+        final String writeOut = this.request.getWriteOut();
 
-        // If an output file is defined, print to it otherwise, output to console
-        if (maybeFile != null) {
-            Utils.outputToFile(maybeFile, output);
+        if (writeOut != null) {
+            System.out.print(this.timings.format(writeOut, this.request.getUrl()));
+            System.out.flush();
+        }
+        if (this.request.isTimingsJson()) {
+            System.err.println(this.timings.toJson(this.request.getUrl()));
+        }
+    }
+
+    /**
+     * Status line and headers of the submitted request's response
+     * @return
+     */
+    public String getResponseHead() {
+        return this.responseHeaders;
+    }
+
+    /**
+     * Value of a header of the submitted request's response
+     *
+     * @param name Case insensitive
+     * @return The value, or null if the response doesn't have it
+     */
+    public String getResponseHeader(final String name) {
+        if (this.request.isNonBlocking()) {
+            return this.asyncParser != null ? this.asyncParser.getHeader(name) : null;
+        }
+        return this.fromCache ? this.cached.getHeader(name) : this.parser.getHeader(name);
+    }
+
+    /**
+     * Give up on the submitted request's response without reading its body. The
+     * connection it was on is closed rather than reused.
+     */
+    public void discardResponse() {
+        this.parser.reset(true);
+        releaseConnection();
+    }
+
+    /**
+     * Decoder for a compressed body, when the request asked for compression
+     *
+     * @param contentEncoding
+     * @param sink Where the decoded body goes
+     * @return The decoder, or null if the body should be written as is
+     */
+    private ContentDecoder decoderFor(final String contentEncoding, final OutputStream sink) {
+        return this.request.isCompressed() ? ContentDecoder.of(contentEncoding, sink) : null;
+    }
+
+    /**
+     * Decoder for a cached body. The entry holds the body in whatever encoding the
+     * request that stored it accepted, so it's decoded unless this request asked
+     * for that encoding itself (an Accept-Encoding header without --compressed).
+     *
+     * @param contentEncoding
+     * @param sink Where the decoded body goes
+     * @return The decoder, or null if the body should be written as is
+     */
+    private ContentDecoder cachedDecoderFor(final String contentEncoding, final OutputStream sink) {
+        final String accepted = this.request.getHeaders().get(Headers.ACCEPT_ENCODING);
+
+        if (!this.request.isCompressed() && contentEncoding != null && accepted != null
+                && accepted.toLowerCase().contains(contentEncoding.trim().toLowerCase())) {
+            return null;
+        }
+        return ContentDecoder.of(contentEncoding, sink);
+    }
+
+    /**
+     * Copy the entity body to the sink, stopping exactly at its end
+     */
+    private void writeBody(final OutputStream sink) throws IOException {
+        final ByteBuffer input = this.connection.getReadBuffer();
+        final OutputStream target = this.receivedBody != null ? new TeeOutputStream(sink, this.receivedBody) : sink;
+
+        while (!this.parser.parseBody(input, target)) {
+            if (!this.connection.fill()) {
+                this.parser.endOfInput();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Hand a pooled connection back (or close a single use one) once we're done with the response
+     */
+    private void releaseConnection() {
+        if (this.connection == null) {
+            return;
+        }
+
+        if (this.borrowed) {
+            this.borrowed = false;
+        } else if (this.pooled) {
+            pool.release(this.connection, this.parser.isDone() && this.parser.isReusable());
         } else {
-            System.out.println(output);
+            this.connection.close();
         }
+        this.connection = null;
     }
 
     /**
-     * Apply the Content-Length header with the appropriate body size if appropriate
+     * Writes everything to both streams, used to store a response in the cache as it's output
      */
-    private void applyContentLength(List<String> headers, String body) {
-        final String HEADER_KEY = "Content-Length";
-        boolean hasContentLength = headers
-            .stream()
-            .anyMatch( header -> 
-                header
-                    .split(":")[0]
-                    .trim()
-                    .equalsIgnoreCase(HEADER_KEY)
-            );
+    private static class TeeOutputStream extends OutputStream {
+        private final OutputStream first;
+        private final OutputStream second;
+
+        private TeeOutputStream(final OutputStream first, final OutputStream second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            first.write(b);
+            second.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            first.write(b, off, len);
+            second.write(b, off, len);
+        }
 
-        if (!hasContentLength && body != null) {
-            this.request.insertHeader(
-                String.format("%s:%d", HEADER_KEY, body.length())
-            );
+        @Override
+        public void flush() throws IOException {
+            first.flush();
+            second.flush();
         }
     }
 
     @Override
     public String toString() {
         return "{" +
-            ", formattedRequest='" + this.formattedRequest + "'" +
+            ", template='" + this.template + "'" +
             ", responseHeaders='" + this.responseHeaders + "'" +
-            ", response='" + this.response + "'" +
             "}";
     }
 
@@ -0,0 +1,384 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Incremental parser for a single HTTP/1.x response working directly on bytes.
+ * Input is pushed in through heap ByteBuffers as it arrives from the connection,
+ * the status line and headers are parsed once, and the body is delimited by
+ * Content-Length, chunked transfer coding or the end of the stream.
+ *
+ * The parser never consumes bytes past the end of the current response, so any
+ * remaining input belongs to the next response on the same connection.
+ */
+public class HttpResponseParser {
+    private enum State {
+        STATUS_LINE, HEADERS, BODY_FIXED, BODY_UNTIL_CLOSE, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, DONE
+    }
+
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private State state = State.STATUS_LINE;
+    private boolean expectBody = true;
+
+    // Line currently being assembled, reused across lines and responses
+    private byte[] line = new byte[256];
+    private int lineLength = 0;
+
+    private final StringBuilder head = new StringBuilder();
+    private final Headers headers = new Headers();
+
+    private int statusCode;
+    private boolean http11;
+    private long contentLength;
+    private boolean chunked;
+    private boolean connectionClose;
+    private boolean connectionKeepAlive;
+    private boolean delimitedByClose;
+    private long remaining;
+
+    /**
+     * Prepare the parser for the next response
+     *
+     * @param expectBody False when the request can't have a response body (eg. HEAD)
+     */
+    public void reset(final boolean expectBody) {
+        this.state = State.STATUS_LINE;
+        this.expectBody = expectBody;
+        this.lineLength = 0;
+        this.head.setLength(0);
+        this.headers.clear();
+        this.statusCode = 0;
+        this.http11 = false;
+        this.contentLength = -1;
+        this.chunked = false;
+        this.connectionClose = false;
+        this.connectionKeepAlive = false;
+        this.delimitedByClose = false;
+        this.remaining = 0;
+    }
+
+    /**
+     * Consume as much of the status line and headers as the buffer holds
+     *
+     * @param in Buffer in read mode, its position is advanced past consumed bytes
+     * @return True once the head has been fully parsed
+     * @throws IOException On a malformed head
+     */
+    public boolean parseHead(final ByteBuffer in) throws IOException {
+        while (state == State.STATUS_LINE || state == State.HEADERS) {
+            if (!readLine(in)) {
+                return false;
+            }
+
+            if (state == State.STATUS_LINE) {
+                // Tolerate stray blank lines left over before a status line
+                if (lineLength > 0) {
+                    parseStatusLine();
+                    state = State.HEADERS;
+                }
+            } else if (lineLength == 0) {
+                endOfHead();
+            } else {
+                parseHeaderLine();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Consume body bytes from the buffer and copy them to the sink
+     *
+     * @param in   Buffer in read mode, its position is advanced past consumed bytes
+     * @param sink Destination of the decoded body
+     * @return True once the whole body has been read
+     * @throws IOException On a malformed chunked body or a failing sink
+     */
+    public boolean parseBody(final ByteBuffer in, final OutputStream sink) throws IOException {
+        while (state != State.DONE) {
+            switch (state) {
+            case BODY_UNTIL_CLOSE:
+                copy(in, sink, in.remaining());
+                return false;
+            case BODY_FIXED:
+            case CHUNK_DATA:
+                if (remaining > 0) {
+                    if (!in.hasRemaining()) {
+                        return false;
+                    }
+                    remaining -= copy(in, sink, (int) Math.min(remaining, in.remaining()));
+                }
+
+                if (remaining == 0) {
+                    state = state == State.BODY_FIXED ? State.DONE : State.CHUNK_END;
+                }
+                continue;
+            case CHUNK_SIZE:
+                if (!readLine(in)) {
+                    return false;
+                }
+                remaining = parseChunkSize();
+                state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+                continue;
+            case CHUNK_END:
+                if (!readLine(in)) {
+                    return false;
+                }
+                lineLength = 0;
+                state = State.CHUNK_SIZE;
+                continue;
+            case TRAILERS:
+                if (!readLine(in)) {
+                    return false;
+                }
+                if (lineLength == 0) {
+                    state = State.DONE;
+                }
+                lineLength = 0;
+                continue;
+            default:
+                throw new IllegalStateException("Response head has not been parsed");
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Signal that the connection reached end of stream
+     *
+     * @return True if that ends the response (a body delimited by connection close)
+     * @throws EOFException If the response was cut short
+     */
+    public boolean endOfInput() throws EOFException {
+        if (state == State.BODY_UNTIL_CLOSE || state == State.DONE) {
+            state = State.DONE;
+            return true;
+        }
+
+        throw new EOFException("Connection closed before the full response was received");
+    }
+
+    public boolean isDone() {
+        return this.state == State.DONE;
+    }
+
+    public int getStatusCode() {
+        return this.statusCode;
+    }
+
+    /**
+     * Status line and headers as text, one per line, without the blank separator line
+     * @return
+     */
+    public String getHead() {
+        return this.head.toString();
+    }
+
+    /**
+     * First value of the named header (case insensitive), or null
+     * @param name
+     * @return
+     */
+    public String getHeader(final String name) {
+        return this.headers.get(name);
+    }
+
+    /**
+     * Every header of the response, valid until the parser is reset
+     * @return
+     */
+    public Headers getHeaders() {
+        return this.headers;
+    }
+
+    public long getContentLength() {
+        return this.contentLength;
+    }
+
+    /**
+     * Whether the connection can carry another request once this response is done
+     * @return
+     */
+    public boolean isReusable() {
+        if (delimitedByClose) {
+            return false;
+        }
+        return http11 ? !connectionClose : connectionKeepAlive;
+    }
+
+    // ============================== PARSING ============================== //
+
+    /**
+     * Accumulate bytes up to and including the next LF
+     * @return True when a full line is available in 'line', without its CRLF
+     */
+    private boolean readLine(final ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            final byte current = in.get();
+
+            if (current == '\n') {
+                if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                    lineLength--;
+                }
+                return true;
+            }
+
+            if (lineLength == line.length) {
+                if (lineLength >= MAX_LINE_LENGTH) {
+                    throw new IOException("Response line too long");
+                }
+                line = Arrays.copyOf(line, lineLength * 2);
+            }
+            line[lineLength++] = current;
+        }
+
+        return false;
+    }
+
+    private void parseStatusLine() throws IOException {
+        // HTTP-version SP status-code SP reason-phrase
+        if (lineLength < 12 || line[0] != 'H' || line[4] != '/' || line[8] != ' ') {
+            throw new IOException("Malformed status line");
+        }
+
+        http11 = line[5] == '1' && line[7] == '1';
+        statusCode = parseDigits(9, 12);
+
+        appendLineToHead();
+        lineLength = 0;
+    }
+
+    private void parseHeaderLine() throws IOException {
+        int separator = -1;
+        for (int i = 0; i < lineLength; i++) {
+            if (line[i] == ':') {
+                separator = i;
+                break;
+            }
+        }
+
+        appendLineToHead();
+
+        if (separator <= 0) {
+            // Not a header we can make sense of, keep it in the head but otherwise ignore it
+            lineLength = 0;
+            return;
+        }
+
+        int nameStart = 0;
+        int nameEnd = separator;
+        while (nameStart < nameEnd && (line[nameStart] & 0xFF) <= ' ') {
+            nameStart++;
+        }
+        while (nameEnd > nameStart && (line[nameEnd - 1] & 0xFF) <= ' ') {
+            nameEnd--;
+        }
+
+        // Common names come back as the Headers constants, so they're compared by identity
+        final String name = Headers.name(line, nameStart, nameEnd - nameStart);
+        final String value = new String(line, separator + 1, lineLength - separator - 1, StandardCharsets.ISO_8859_1).trim();
+        lineLength = 0;
+
+        headers.add(name, value);
+
+        if (name == Headers.CONTENT_LENGTH) {
+            try {
+                contentLength = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed Content-Length: " + value);
+            }
+        } else if (name == Headers.TRANSFER_ENCODING) {
+            chunked = value.toLowerCase().endsWith("chunked");
+        } else if (name == Headers.CONNECTION) {
+            connectionClose = connectionClose || value.equalsIgnoreCase("close");
+            connectionKeepAlive = connectionKeepAlive || value.equalsIgnoreCase("keep-alive");
+        }
+    }
+
+    private void endOfHead() {
+        lineLength = 0;
+
+        // Interim 1xx responses are followed by the real one
+        if (statusCode >= 100 && statusCode < 200) {
+            head.setLength(0);
+            headers.clear();
+            contentLength = -1;
+            chunked = false;
+            state = State.STATUS_LINE;
+            return;
+        }
+
+        if (!expectBody || statusCode == 204 || statusCode == 304) {
+            state = State.DONE;
+        } else if (chunked) {
+            state = State.CHUNK_SIZE;
+        } else if (contentLength >= 0) {
+            remaining = contentLength;
+            state = remaining == 0 ? State.DONE : State.BODY_FIXED;
+        } else {
+            delimitedByClose = true;
+            state = State.BODY_UNTIL_CLOSE;
+        }
+    }
+
+    private long parseChunkSize() throws IOException {
+        long size = 0;
+        int digits = 0;
+
+        for (int i = 0; i < lineLength; i++) {
+            final int value = Character.digit(line[i], 16);
+
+            // Anything after the hex digits is a chunk extension or whitespace
+            if (value < 0) {
+                break;
+            }
+            size = (size << 4) | value;
+            digits++;
+        }
+
+        lineLength = 0;
+
+        if (digits == 0 || digits > 15) {
+            throw new IOException("Malformed chunk size");
+        }
+
+        return size;
+    }
+
+    private int parseDigits(final int from, final int to) throws IOException {
+        int value = 0;
+
+        for (int i = from; i < to; i++) {
+            if (line[i] < '0' || line[i] > '9') {
+                throw new IOException("Malformed status code");
+            }
+            value = value * 10 + (line[i] - '0');
+        }
+
+        return value;
+    }
+
+    private void appendLineToHead() {
+        for (int i = 0; i < lineLength; i++) {
+            head.append((char) (line[i] & 0xFF));
+        }
+        head.append('\n');
+    }
+
+    /**
+     * Write up to 'length' bytes from the buffer to the sink
+     * @return Number of bytes consumed
+     */
+    private static int copy(final ByteBuffer in, final OutputStream sink, final int length) throws IOException {
+        if (length > 0) {
+            sink.write(in.array(), in.arrayOffset() + in.position(), length);
+            in.position(in.position() + length);
+        }
+        return length;
+    }
+}
@@ -1,12 +1,74 @@
+import constants.Argument;
+import constants.Method;
+
 public class Httpc {
     public static void main(String[] args) {
-        Request request = new CommandProcessor(args).getRequest();
-
-        HttpRequestHandler handler = new HttpRequestHandler(request);
- 
-        handler
-            .formatRequest()
-            .submitRequest()
-            .outputResponse();
+        if (args.length > 0 && Utils.parse(Argument.class, args[0]) == Argument.DAEMON) {
+            try {
+                Daemon.start(args);
+            } catch (HttpcException e) {
+                System.out.println(e.getMessage());
+            }
+            return;
+        }
+
+        // A failed command exits with status 0 all the same, scripts tell by its message
+        if (!run(args)) {
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Execute a command, printing its output and any error to the console
+     *
+     * @param args
+     * @return False if the command failed
+     */
+    static boolean run(String[] args) {
+        TrafficLog.commandStarted();
+        try {
+            final Method command = args.length > 0 ? Utils.parse(Method.class, args[0]) : null;
+
+            if (command == Method.BATCH) {
+                new BatchRunner(args).run();
+                return true;
+            }
+
+            if (command == Method.BENCH) {
+                new BenchRunner(args).run();
+                return true;
+            }
+
+            if (command == Method.REPLAY) {
+                new ReplayRunner(args).run();
+                return true;
+            }
+
+            Request request = new CommandProcessor(args).getRequest();
+
+            if (request.getParallelism() > 1) {
+                new RangedDownload(request).run();
+                return true;
+            }
+
+            HttpRequestHandler handler = new HttpRequestHandler(request);
+
+            handler
+                .formatRequest()
+                .submitRequest()
+                .outputResponse();
+            return true;
+        } catch (UsageException e) {
+            if (e.getReason() != null) {
+                System.out.println(e.getReason());
+            }
+            System.out.println(e.getHelp());
+            return false;
+        } catch (HttpcException e) {
+            System.out.println(e.getMessage());
+            return false;
+        } finally {
+            TrafficLog.commandFinished();
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,250 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Sends requests from within another program, without going through Httpc's
+ * command line or starting a JVM per request, eg.
+ *
+ *   HttpcClient client = new HttpcClient();
+ *   Request request = new Request(Method.GET, "http://localhost:8080/get");
+ *   request.setKeepAlive(true);
+ *   client.send(request).thenAccept(response -> ...);
+ *
+ * Requests take the same HttpRequestHandler path as the command line and share
+ * the default connection pool. Failures complete the future exceptionally
+ * with an HttpcException, nothing here prints or exits.
+ *
+ * The future completes as soon as the response head is in. The body is then
+ * streamed from a worker thread through a small buffer, so a slow reader holds
+ * back the connection rather than filling memory. Non-blocking requests
+ * (setNonBlocking) are completed by the event loop with the whole body in memory
+ * instead, so they don't need a thread each. Their futures complete on the
+ * event loop thread, so anything slow chained on them belongs in an *Async stage.
+ */
+public class HttpcClient implements AutoCloseable {
+    private static final int BODY_BUFFER_BYTES = 64 * 1024;
+
+    private final ExecutorService executor = Utils.newRequestExecutor();
+
+    /**
+     * Send a request. Its output file, verbosity and parallelism don't apply,
+     * the response goes to the returned Response instead.
+     *
+     * @param request
+     * @return Completes with the response once its head has been received
+     */
+    public CompletableFuture<Response> send(final Request request) {
+        final Request copy = new Request(request);
+        copy.setVerbose(false);
+        copy.setParallelism(1);
+
+        if (copy.isNonBlocking()) {
+            return sendNonBlocking(copy);
+        }
+
+        final CompletableFuture<Response> future = new CompletableFuture<>();
+        try {
+            this.executor.execute(() -> exchange(copy, future));
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new HttpcException("Client is closed", e));
+        }
+        return future;
+    }
+
+    /**
+     * Stop accepting requests and close idle pooled connections. Responses
+     * already being streamed carry on until they're read or closed.
+     */
+    @Override
+    public void close() {
+        this.executor.shutdown();
+        ConnectionPool.getDefault().closeIdle();
+    }
+
+    /**
+     * Submit the request, hand back its response and then stream the body into it
+     */
+    private void exchange(final Request request, final CompletableFuture<Response> future) {
+        final HttpRequestHandler handler;
+        try {
+            handler = new HttpRequestHandler(request)
+                .formatRequest()
+                .submitRequest();
+        } catch (HttpcException e) {
+            future.completeExceptionally(e);
+            return;
+        }
+
+        final BodyPipe pipe = new BodyPipe(BODY_BUFFER_BYTES);
+        final Response response = new Response(handler, pipe.source);
+
+        // Whatever the caller chains on the future may read the body, which this thread has
+        // to write, so it's completed from another one. Nobody reads a cancelled request's body.
+        future.whenComplete((result, error) -> {
+            if (error != null) {
+                pipe.abandon();
+            }
+        });
+        try {
+            future.completeAsync(() -> response, this.executor);
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new HttpcException("Client is closed", e));
+        }
+
+        try {
+            handler.outputResponse(pipe.sink);
+            pipe.finish(null);
+        } catch (HttpcException e) {
+            pipe.finish(new IOException(e.getMessage(), e.getCause()));
+        }
+    }
+
+    private CompletableFuture<Response> sendNonBlocking(final Request request) {
+        final HttpRequestHandler handler;
+        try {
+            // Only resolves the host, the event loop does the rest
+            handler = new HttpRequestHandler(request)
+                .formatRequest()
+                .submitRequest();
+        } catch (HttpcException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        return handler.sendAsync(body).handle((status, error) -> {
+            if (error != null) {
+                final Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                throw new CompletionException(new HttpcException("Error communicating with host", cause));
+            }
+            return new Response(handler, new ByteArrayInputStream(body.toByteArray()));
+        });
+    }
+
+    /**
+     * Bounded buffer between the thread writing a response body and the one
+     * reading it. Either side closing early fails the other one.
+     */
+    private static class BodyPipe {
+        private final byte[] buffer;
+        private int readPosition = 0;
+        private int count = 0;
+        private boolean finished = false;
+        private boolean abandoned = false;
+        private IOException failure = null;
+
+        private final InputStream source = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                final byte[] single = new byte[1];
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return take(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                abandon();
+            }
+        };
+
+        private final OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                put(b, off, len);
+            }
+        };
+
+        private BodyPipe(final int size) {
+            this.buffer = new byte[size];
+        }
+
+        private synchronized void put(final byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                while (this.count == this.buffer.length && !this.abandoned) {
+                    await();
+                }
+                if (this.abandoned) {
+                    throw new IOException("Response body closed before it was read");
+                }
+
+                final int writePosition = (this.readPosition + this.count) % this.buffer.length;
+                final int length = Math.min(len, Math.min(
+                    this.buffer.length - this.count, this.buffer.length - writePosition
+                ));
+
+                System.arraycopy(b, off, this.buffer, writePosition, length);
+                this.count += length;
+                off += length;
+                len -= length;
+                notifyAll();
+            }
+        }
+
+        private synchronized int take(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            while (this.count == 0 && !this.finished && !this.abandoned) {
+                await();
+            }
+            if (this.abandoned) {
+                throw new IOException("Response body is closed");
+            }
+            if (this.count == 0) {
+                if (this.failure != null) {
+                    throw this.failure;
+                }
+                return -1;
+            }
+
+            final int length = Math.min(len, Math.min(this.count, this.buffer.length - this.readPosition));
+            System.arraycopy(this.buffer, this.readPosition, b, off, length);
+            this.readPosition = (this.readPosition + length) % this.buffer.length;
+            this.count -= length;
+            notifyAll();
+
+            return length;
+        }
+
+        /**
+         * @param failure Why the body is incomplete, or null once all of it has been written
+         */
+        private synchronized void finish(final IOException failure) {
+            this.finished = true;
+            this.failure = failure;
+            notifyAll();
+        }
+
+        private synchronized void abandon() {
+            this.abandoned = true;
+            notifyAll();
+        }
+
+        private void await() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the response body");
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+/**
+ * Raised when a request can't be completed, carrying the message shown to the user.
+ * A single request run reports it and exits, while multi-request runs record it
+ * against the failing request and carry on with the rest.
+ */
+public class HttpcException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public HttpcException(final String message) {
+        super(message);
+    }
+
+    public HttpcException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
+}
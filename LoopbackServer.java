@@ -0,0 +1,385 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Small HTTP/1.1 server on the loopback interface, so httpc can be tested and
+ * measured without a network. The path picks the response body and the query
+ * picks how it's sent:
+ *
+ *   /bytes/n     A body of n bytes, any other path gets a small fixed body
+ *   chunked=1    Chunked transfer encoding instead of a Content-Length
+ *   delay=ms     Wait this long before answering
+ *   close=1      Answer with 'Connection: close' and close the connection
+ *   drop=1       Close the connection halfway through the body
+ *
+ * eg. '/bytes/65536?chunked=1&delay=20'. POST bodies are echoed back.
+ * Connections are kept alive for HTTP/1.1 requests unless the server was
+ * started without keep-alive. With a TLS context the server speaks https,
+ * selfSignedTls() makes one with a certificate for localhost.
+ *
+ * Usage: 'java LoopbackServer [port] [--tls]'
+ */
+public class LoopbackServer implements AutoCloseable {
+    public static final String KEY_STORE_PASSWORD = "changeit";
+
+    private static final int CHUNK_SIZE = 8192;
+    private static final byte[] PATTERN = new byte[64 * 1024];
+    private static final byte[] DEFAULT_BODY = "{\"server\": \"loopback\"}\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    static {
+        for (int i = 0; i < PATTERN.length; i++) {
+            PATTERN[i] = (byte) ('a' + i % 26);
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final boolean keepAlive;
+    private final boolean secure;
+    private final ExecutorService executor;
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong lastRequestNanos = new AtomicLong();
+
+    /**
+     * Start listening, connections are accepted from then on
+     *
+     * @param port      0 for any free port
+     * @param keepAlive Whether HTTP/1.1 connections may carry more than one request
+     * @throws IOException
+     */
+    public LoopbackServer(final int port, final boolean keepAlive) throws IOException {
+        this(port, keepAlive, null);
+    }
+
+    /**
+     * @param port      0 for any free port
+     * @param keepAlive Whether HTTP/1.1 connections may carry more than one request
+     * @param tls       Context to serve https with, null for plain HTTP
+     * @throws IOException
+     */
+    public LoopbackServer(final int port, final boolean keepAlive, final SSLContext tls) throws IOException {
+        this.serverSocket = tls != null
+            ? tls.getServerSocketFactory().createServerSocket(port, 1024, InetAddress.getLoopbackAddress())
+            : new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+        this.keepAlive = keepAlive;
+        this.secure = tls != null;
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "loopback-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.execute(this::acceptLoop);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        final boolean tls = args.length > 1 && args[1].equals("--tls");
+        final Path keyStore = Paths.get(System.getProperty("java.io.tmpdir"), "httpc-loopback.p12");
+        final LoopbackServer server = new LoopbackServer(port, true, tls ? selfSignedTls(keyStore) : null);
+
+        System.out.println("Listening on " + server.getBaseUrl());
+        if (tls) {
+            System.out.println("Trust it with -Djavax.net.ssl.trustStore=" + keyStore
+                + " -Djavax.net.ssl.trustStorePassword=" + KEY_STORE_PASSWORD);
+        }
+        Thread.currentThread().join();
+    }
+
+    public int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    /**
+     * eg. 'http://localhost:8080'
+     * @return
+     */
+    public String getBaseUrl() {
+        return (this.secure ? "https" : "http") + "://localhost:" + getPort();
+    }
+
+    /**
+     * Connections accepted so far
+     * @return
+     */
+    public long getConnections() {
+        return this.connections.get();
+    }
+
+    /**
+     * Requests answered so far
+     * @return
+     */
+    public long getRequests() {
+        return this.requests.get();
+    }
+
+    /**
+     * When the request line of the latest request was received
+     * @return System.nanoTime() of its arrival, 0 before the first request
+     */
+    public long getLastRequestNanos() {
+        return this.lastRequestNanos.get();
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.serverSocket.close();
+        } catch (IOException e) {
+            // Nothing left to do with a socket we couldn't close
+        }
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Server side TLS with a new self signed certificate for localhost, which
+     * is written to a PKCS12 key store that clients can use as their trust store
+     *
+     * @param keyStore Replaced if it exists, the password is KEY_STORE_PASSWORD
+     * @return
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public static SSLContext selfSignedTls(final Path keyStore) throws IOException, GeneralSecurityException {
+        Files.deleteIfExists(keyStore);
+
+        final Process keytool = new ProcessBuilder(
+            Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(),
+            "-genkeypair", "-alias", "loopback", "-keyalg", "EC", "-groupname", "secp256r1",
+            "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "30",
+            "-storetype", "PKCS12", "-keystore", keyStore.toString(), "-storepass", KEY_STORE_PASSWORD
+        ).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+
+        try {
+            if (keytool.waitFor() != 0) {
+                throw new IOException("keytool couldn't create " + keyStore);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted creating " + keyStore);
+        }
+
+        final KeyStore store = KeyStore.getInstance("PKCS12");
+        try (
+            InputStream input = Files.newInputStream(keyStore);
+        ) {
+            store.load(input, KEY_STORE_PASSWORD.toCharArray());
+        }
+
+        final KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(store, KEY_STORE_PASSWORD.toCharArray());
+
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), null, null);
+        return context;
+    }
+
+    private void acceptLoop() {
+        while (!this.serverSocket.isClosed()) {
+            try {
+                final Socket socket = this.serverSocket.accept();
+                this.connections.incrementAndGet();
+                this.executor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                // Closed, or a connection that failed before we got it
+            }
+        }
+    }
+
+    /**
+     * Answer requests on the connection until either side closes it
+     */
+    private void serve(final Socket socket) {
+        try (
+            Socket s = socket;
+            InputStream input = new BufferedInputStream(s.getInputStream());
+            OutputStream output = new BufferedOutputStream(s.getOutputStream(), CHUNK_SIZE);
+        ) {
+            s.setTcpNoDelay(true);
+
+            while (true) {
+                final String requestLine = readLine(input);
+                if (requestLine == null || requestLine.isEmpty()) {
+                    return;
+                }
+                this.lastRequestNanos.set(System.nanoTime());
+
+                final Map<String, String> headers = new HashMap<>();
+                String line;
+                while ((line = readLine(input)) != null && !line.isEmpty()) {
+                    final int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                    }
+                }
+
+                final String[] parts = requestLine.split(" ");
+                if (parts.length != 3 || line == null) {
+                    return;
+                }
+
+                final byte[] body = readBody(input, headers.get("content-length"));
+                this.requests.incrementAndGet();
+
+                if (!respond(output, parts[0], parts[1], parts[2], headers, body)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // The client went away, nothing to answer
+        }
+    }
+
+    /**
+     * Write the response the request asked for
+     *
+     * @return Whether the connection stays open for another request
+     * @throws IOException
+     */
+    private boolean respond(final OutputStream output, final String method, final String target,
+            final String version, final Map<String, String> headers, final byte[] requestBody) throws IOException {
+        final int queryStart = target.indexOf('?');
+        final String path = queryStart < 0 ? target : target.substring(0, queryStart);
+        final Map<String, String> query = parseQuery(queryStart < 0 ? "" : target.substring(queryStart + 1));
+
+        final boolean chunked = "1".equals(query.get("chunked"));
+        final boolean drop = "1".equals(query.get("drop"));
+        final boolean keepOpen = this.keepAlive
+            && !"1".equals(query.get("close"))
+            && version.equals("HTTP/1.1")
+            && !"close".equalsIgnoreCase(headers.get("connection"));
+
+        if (query.containsKey("delay")) {
+            try {
+                Thread.sleep(Long.parseLong(query.get("delay")));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        final byte[] fixedBody = method.equals("POST") ? requestBody : path.startsWith("/bytes/") ? null : DEFAULT_BODY;
+        final long length;
+        try {
+            length = fixedBody != null ? fixedBody.length : Long.parseLong(path.substring("/bytes/".length()));
+        } catch (NumberFormatException e) {
+            output.write("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            output.flush();
+            return false;
+        }
+
+        StringBuilder head = new StringBuilder()
+            .append("HTTP/1.1 200 OK\r\n")
+            .append("Content-Type: ").append(method.equals("POST") ? "application/octet-stream" : "text/plain").append("\r\n")
+            .append(chunked ? "Transfer-Encoding: chunked\r\n" : "Content-Length: " + length + "\r\n")
+            .append(keepOpen ? "" : "Connection: close\r\n")
+            .append("\r\n");
+        output.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+        if (method.equals("HEAD")) {
+            output.flush();
+            return keepOpen;
+        }
+
+        // A dropped connection only gets the first half of its body
+        final long limit = drop ? length / 2 : length;
+        long written = 0;
+
+        while (written < limit) {
+            final int size = (int) Math.min(CHUNK_SIZE, limit - written);
+            final byte[] source = fixedBody != null ? fixedBody : PATTERN;
+            final int offset = fixedBody != null ? (int) written : (int) (written % PATTERN.length);
+            final int count = fixedBody != null ? size : Math.min(size, PATTERN.length - offset);
+
+            if (chunked) {
+                output.write((Integer.toHexString(count) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            }
+            output.write(source, offset, count);
+            if (chunked) {
+                output.write('\r');
+                output.write('\n');
+            }
+            written += count;
+        }
+
+        if (drop) {
+            output.flush();
+            return false;
+        }
+
+        if (chunked) {
+            output.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+        output.flush();
+        return keepOpen;
+    }
+
+    private static byte[] readBody(final InputStream input, final String contentLength) throws IOException {
+        if (contentLength == null) {
+            return new byte[0];
+        }
+
+        try {
+            return input.readNBytes(Integer.parseInt(contentLength));
+        } catch (NumberFormatException e) {
+            throw new SocketException("Bad Content-Length: " + contentLength);
+        }
+    }
+
+    /**
+     * Read a CRLF (or bare LF) terminated line
+     *
+     * @return The line without its terminator, or null at the end of the stream
+     * @throws IOException
+     */
+    private static String readLine(final InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+
+        while ((b = input.read()) != -1) {
+            if (b == '\n') {
+                final byte[] bytes = line.toByteArray();
+                final int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+            }
+            line.write(b);
+        }
+
+        return line.size() > 0 ? line.toString(StandardCharsets.ISO_8859_1) : null;
+    }
+
+    private static Map<String, String> parseQuery(final String query) {
+        final Map<String, String> parameters = new HashMap<>();
+
+        for (String parameter : query.split("&")) {
+            final int equals = parameter.indexOf('=');
+            if (equals > 0) {
+                parameters.put(parameter.substring(0, equals), parameter.substring(equals + 1));
+            }
+        }
+
+        return parameters;
+    }
+}
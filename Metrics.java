@@ -0,0 +1,263 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Process wide counters for everything that goes through HttpRequestHandler:
+ * requests by status class, errors, bytes sent and received, connection pool
+ * hits and misses, open connections and the request latency distribution.
+ *
+ * Every metric is a LongAdder, striped across threads, so recording a request
+ * never takes a lock or contends on a shared cache line. Reading sums the
+ * stripes, which is only done by the exporters. The latency histogram uses
+ * fixed buckets so it can be exported as a Prometheus histogram as it is.
+ *
+ * Exposed over JMX as 'httpc:type=Metrics' once registerMBean() is called.
+ */
+public class Metrics implements MetricsMBean {
+    public static final String OBJECT_NAME = "httpc:type=Metrics";
+
+    // Upper bounds of the latency buckets, in seconds, the last one catches everything above
+    private static final double[] BUCKET_BOUNDS = {
+        0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+    private static final long[] BUCKET_BOUNDS_NANOS = new long[BUCKET_BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            BUCKET_BOUNDS_NANOS[i] = (long) (BUCKET_BOUNDS[i] * 1e9);
+        }
+    }
+
+    private static final Metrics DEFAULT = new Metrics();
+
+    // Indexed by status / 100, 0 is unused
+    private final LongAdder[] statusClasses = newAdders(6);
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder poolHits = new LongAdder();
+    private final LongAdder poolMisses = new LongAdder();
+    private final LongAdder openConnections = new LongAdder();
+
+    private final LongAdder[] latencyBuckets = newAdders(BUCKET_BOUNDS.length + 1);
+    private final LongAdder latencySumNanos = new LongAdder();
+
+    private boolean registered = false;
+
+    /**
+     * Metrics shared by every handler in this process
+     * @return
+     */
+    public static Metrics getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Register with the platform MBean server, once. Left to long runs, since
+     * starting JMX costs more than a single request takes.
+     */
+    public synchronized void registerMBean() {
+        if (this.registered) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+            this.registered = true;
+        } catch (JMException e) {
+            throw new HttpcException("Error registering metrics with JMX", e);
+        }
+    }
+
+    // ============================== RECORDING ============================== //
+
+    /**
+     * Record a completed request
+     *
+     * @param statusCode
+     * @param latencyNanos  From submitting the request to the end of its response
+     * @param sent          Bytes sent
+     * @param received      Bytes received
+     */
+    public void recordRequest(final int statusCode, final long latencyNanos, final long sent, final long received) {
+        final int statusClass = statusCode / 100;
+        if (statusClass >= 1 && statusClass <= 5) {
+            this.statusClasses[statusClass].increment();
+        }
+
+        this.bytesSent.add(sent);
+        this.bytesReceived.add(received);
+        this.latencySumNanos.add(latencyNanos);
+
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_NANOS.length && latencyNanos > BUCKET_BOUNDS_NANOS[bucket]) {
+            bucket++;
+        }
+        this.latencyBuckets[bucket].increment();
+    }
+
+    /**
+     * Record a request that failed without a response
+     */
+    public void recordError() {
+        this.errors.increment();
+    }
+
+    /**
+     * @param hit Whether an idle pooled connection was reused rather than a new one opened
+     */
+    public void recordPoolAcquire(final boolean hit) {
+        (hit ? this.poolHits : this.poolMisses).increment();
+    }
+
+    public void connectionOpened() {
+        this.openConnections.increment();
+    }
+
+    public void connectionClosed() {
+        this.openConnections.decrement();
+    }
+
+    // ============================== READING ============================== //
+
+    @Override
+    public long getRequests() {
+        long total = 0;
+        for (int i = 1; i < this.statusClasses.length; i++) {
+            total += this.statusClasses[i].sum();
+        }
+        return total;
+    }
+
+    /**
+     * @param statusClass 1 to 5, for 1xx to 5xx
+     * @return
+     */
+    public long getRequests(final int statusClass) {
+        return this.statusClasses[statusClass].sum();
+    }
+
+    @Override
+    public long getRequests2xx() {
+        return getRequests(2);
+    }
+
+    @Override
+    public long getRequests3xx() {
+        return getRequests(3);
+    }
+
+    @Override
+    public long getRequests4xx() {
+        return getRequests(4);
+    }
+
+    @Override
+    public long getRequests5xx() {
+        return getRequests(5);
+    }
+
+    @Override
+    public long getErrors() {
+        return this.errors.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return this.bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return this.bytesReceived.sum();
+    }
+
+    @Override
+    public long getPoolHits() {
+        return this.poolHits.sum();
+    }
+
+    @Override
+    public long getPoolMisses() {
+        return this.poolMisses.sum();
+    }
+
+    @Override
+    public long getOpenConnections() {
+        return this.openConnections.sum();
+    }
+
+    @Override
+    public double getMeanLatencyMillis() {
+        final long count = getRequests();
+        return count == 0 ? 0 : this.latencySumNanos.sum() / 1e6 / count;
+    }
+
+    @Override
+    public double getP50LatencyMillis() {
+        return getLatencyMillisAtPercentile(50);
+    }
+
+    @Override
+    public double getP99LatencyMillis() {
+        return getLatencyMillisAtPercentile(99);
+    }
+
+    /**
+     * Latency at a percentile, as the upper bound of the bucket it falls in
+     *
+     * @param percentile
+     * @return Milliseconds, or infinity if it's beyond the last bucket
+     */
+    public double getLatencyMillisAtPercentile(final double percentile) {
+        final long[] counts = getLatencyBucketCounts();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        final long target = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return i < BUCKET_BOUNDS.length ? BUCKET_BOUNDS[i] * 1000 : Double.POSITIVE_INFINITY;
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Requests per latency bucket (not cumulative), the last entry being those above every bound
+     * @return
+     */
+    public long[] getLatencyBucketCounts() {
+        final long[] counts = new long[this.latencyBuckets.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = this.latencyBuckets[i].sum();
+        }
+        return counts;
+    }
+
+    public static double[] getLatencyBucketBounds() {
+        return BUCKET_BOUNDS.clone();
+    }
+
+    public double getLatencySumSeconds() {
+        return this.latencySumNanos.sum() / 1e9;
+    }
+
+    private static LongAdder[] newAdders(final int count) {
+        final LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * JMX view of Metrics, every attribute is read only and cumulative since the
+ * process started (except the open connection gauge)
+ */
+public interface MetricsMBean {
+    long getRequests();
+
+    long getRequests2xx();
+
+    long getRequests3xx();
+
+    long getRequests4xx();
+
+    long getRequests5xx();
+
+    /**
+     * Requests that failed without a response (eg. connection errors)
+     * @return
+     */
+    long getErrors();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getPoolHits();
+
+    long getPoolMisses();
+
+    long getOpenConnections();
+
+    double getMeanLatencyMillis();
+
+    /**
+     * Median latency, as the upper bound of its histogram bucket
+     * @return
+     */
+    double getP50LatencyMillis();
+
+    double getP99LatencyMillis();
+}
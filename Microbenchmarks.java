@@ -0,0 +1,204 @@
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Offline microbenchmarks for the CPU bound parts of a request: argument
+ * processing, request formatting, response parsing and file body loading.
+ * Nothing here touches the network, so results are comparable between runs
+ * and can be used as a regression baseline.
+ *
+ * Usage: 'java Microbenchmarks [name-filter]'
+ *
+ * Each benchmark runs warmup iterations first so the JIT has settled, then
+ * reports the mean and standard deviation of the time per operation across
+ * the measured iterations. Every result is folded into a sink so the JIT
+ * can't eliminate the work being measured.
+ */
+public class Microbenchmarks {
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 1_000_000_000L;
+
+    private static volatile int sink;
+
+    public static void main(String[] args) throws Exception {
+        final String filter = args.length > 0 ? args[0] : "";
+        final Map<String, Callable<Object>> benchmarks = new LinkedHashMap<>();
+
+        // ============================== ARGUMENT PROCESSING ============================== //
+
+        final String[] getArgs = {
+            "get", "http://httpbin.org/get?course=networking&assignment=1", "-v",
+            "-h", "Accept:application/json", "-h", "User-Agent:httpc", "-h", "Cache-Control:no-cache"
+        };
+        final String[] postArgs = {
+            "post", "http://httpbin.org/post", "-v", "-h", "Content-Type:application/json",
+            "-d", "{\"Assignment\": 1}", "-o", "output"
+        };
+
+        benchmarks.put("commandProcessor.get", () -> new CommandProcessor(getArgs).getRequest());
+        benchmarks.put("commandProcessor.post", () -> new CommandProcessor(postArgs).getRequest());
+
+        // ============================== REQUEST FORMATTING ============================== //
+
+        final Request getRequest = new CommandProcessor(getArgs).getRequest();
+        final Request postRequest = new CommandProcessor(postArgs).getRequest();
+        final Request keepAliveRequest = new CommandProcessor(getArgs).getRequest();
+        keepAliveRequest.setKeepAlive(true);
+
+        benchmarks.put("formatRequest.get", () -> new HttpRequestHandler(getRequest).formatRequest());
+        benchmarks.put("formatRequest.post", () -> new HttpRequestHandler(postRequest).formatRequest());
+        benchmarks.put("formatRequest.keepAlive", () -> new HttpRequestHandler(keepAliveRequest).formatRequest());
+
+        final OutputStream discard = OutputStream.nullOutputStream();
+        final byte[] postBody = postRequest.getBody().getBytes(StandardCharsets.UTF_8);
+
+        benchmarks.put("writeRequest.get", () -> {
+            getRequest.getTemplate().writeTo(discard, getRequest.getPath(), null, null, -1);
+            return getRequest;
+        });
+        benchmarks.put("writeRequest.post", () -> {
+            postRequest.getTemplate().writeTo(discard, postRequest.getPath(), null, postBody, postBody.length);
+            return postRequest;
+        });
+
+        // ============================== RESPONSE PARSING ============================== //
+
+        final ByteBuffer smallResponse = cannedResponse(512, false);
+        final ByteBuffer largeResponse = cannedResponse(256 * 1024, false);
+        final ByteBuffer chunkedResponse = cannedResponse(256 * 1024, true);
+        final HttpResponseParser parser = new HttpResponseParser();
+
+        benchmarks.put("parseResponse.small", () -> parse(parser, smallResponse));
+        benchmarks.put("parseResponse.large", () -> parse(parser, largeResponse));
+        benchmarks.put("parseResponse.chunked", () -> parse(parser, chunkedResponse));
+
+        final byte[] gzippedBody = Utils.gzip(cannedBody(256 * 1024));
+
+        benchmarks.put("decodeResponse.gzip", () -> {
+            final ContentDecoder decoder = ContentDecoder.of("gzip", OutputStream.nullOutputStream());
+            decoder.write(gzippedBody, 0, gzippedBody.length);
+            decoder.finish();
+            return decoder;
+        });
+
+        // ============================== FILE BODIES ============================== //
+
+        if (Httpc.class.getResource("input.txt") != null) {
+            benchmarks.put("extractFileContents", () -> Utils.extractFileContents("input.txt"));
+        } else {
+            System.out.println("Skipping extractFileContents, input.txt isn't on the classpath");
+        }
+
+        for (Map.Entry<String, Callable<Object>> benchmark : benchmarks.entrySet()) {
+            if (benchmark.getKey().contains(filter)) {
+                run(benchmark.getKey(), benchmark.getValue());
+            }
+        }
+    }
+
+    private static void run(final String name, final Callable<Object> benchmark) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(benchmark);
+        }
+
+        final double[] results = new double[MEASURED_ITERATIONS];
+        double total = 0;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            results[i] = iteration(benchmark);
+            total += results[i];
+        }
+
+        final double mean = total / MEASURED_ITERATIONS;
+        double variance = 0;
+        for (double result : results) {
+            variance += (result - mean) * (result - mean);
+        }
+        final double deviation = Math.sqrt(variance / MEASURED_ITERATIONS);
+
+        System.out.println(String.format("%-28s %12.1f ns/op  +- %8.1f", name, mean, deviation));
+    }
+
+    /**
+     * Call the benchmark repeatedly for about ITERATION_NANOS
+     * @return Mean time per call in nanoseconds
+     */
+    private static double iteration(final Callable<Object> benchmark) throws Exception {
+        final long start = System.nanoTime();
+        long now = start;
+        long operations = 0;
+        int consumed = 0;
+
+        while (now - start < ITERATION_NANOS) {
+            // Check the clock every so often rather than on every call
+            for (int i = 0; i < 64; i++) {
+                consumed ^= System.identityHashCode(benchmark.call());
+            }
+            operations += 64;
+            now = System.nanoTime();
+        }
+
+        sink ^= consumed;
+        return (double) (now - start) / operations;
+    }
+
+    private static Object parse(final HttpResponseParser parser, final ByteBuffer response) throws Exception {
+        final ByteBuffer input = response.duplicate();
+
+        parser.reset(true);
+        parser.parseHead(input);
+        parser.parseBody(input, OutputStream.nullOutputStream());
+
+        return parser;
+    }
+
+    private static byte[] cannedBody(final int bodySize) {
+        final byte[] body = new byte[bodySize];
+        for (int i = 0; i < bodySize; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        return body;
+    }
+
+    /**
+     * A typical response with a body of the given size, either with a
+     * Content-Length or split into 8KB chunks
+     */
+    private static ByteBuffer cannedResponse(final int bodySize, final boolean chunked) {
+        StringBuilder head = new StringBuilder()
+            .append("HTTP/1.1 200 OK\r\n")
+            .append("Date: Thu, 01 Jan 2026 00:00:00 GMT\r\n")
+            .append("Content-Type: application/json\r\n")
+            .append("Server: gunicorn/19.9.0\r\n")
+            .append("Access-Control-Allow-Origin: *\r\n")
+            .append("Access-Control-Allow-Credentials: true\r\n")
+            .append(chunked ? "Transfer-Encoding: chunked\r\n" : "Content-Length: " + bodySize + "\r\n")
+            .append("\r\n");
+
+        final byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        final ByteBuffer buffer = ByteBuffer.allocate(headBytes.length + bodySize * 2 + 64);
+        buffer.put(headBytes);
+
+        final byte[] body = cannedBody(bodySize);
+
+        if (chunked) {
+            final int chunkSize = 8192;
+            for (int offset = 0; offset < bodySize; offset += chunkSize) {
+                final int length = Math.min(chunkSize, bodySize - offset);
+                buffer.put((Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                buffer.put(body, offset, length);
+                buffer.put("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            }
+            buffer.put("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        } else {
+            buffer.put(body);
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+}
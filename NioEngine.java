@@ -0,0 +1,375 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking transport that drives many requests at once from a handful of
+ * threads. Each event loop owns a Selector and runs every exchange assigned to
+ * it as a small state machine: connect, write the request (and file body), then
+ * read and parse the response into the exchange's sink. Thousands of requests
+ * can be in flight without a thread, or a thread stack, per connection.
+ *
+ * Each exchange uses its own connection, closed once its response is read.
+ */
+public class NioEngine {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param loopCount Number of event loop threads, usually one per core
+     * @throws IOException If a selector can't be opened
+     */
+    public NioEngine(final int loopCount) throws IOException {
+        this.loops = new EventLoop[loopCount];
+
+        for (int i = 0; i < loopCount; i++) {
+            this.loops[i] = new EventLoop("httpc-nio-" + i);
+        }
+    }
+
+    /**
+     * Engine shared by every non-blocking request in this process, with one
+     * event loop per core. Started on first use.
+     * @return
+     */
+    public static NioEngine getDefault() {
+        return DefaultHolder.ENGINE;
+    }
+
+    /**
+     * Start an exchange on the next event loop
+     *
+     * @param exchange
+     * @return Completes with the response status code once the body has been
+     *         written to the exchange's sink, or exceptionally on any I/O error
+     */
+    public CompletableFuture<Integer> execute(final Exchange exchange) {
+        final EventLoop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+        loop.submit(exchange);
+
+        return exchange.future;
+    }
+
+    /**
+     * Stop every event loop, failing exchanges still in flight
+     */
+    public void shutdown() {
+        for (EventLoop loop : loops) {
+            loop.close();
+        }
+    }
+
+    private static class DefaultHolder {
+        private static final NioEngine ENGINE = create();
+
+        private static NioEngine create() {
+            try {
+                return new NioEngine(Runtime.getRuntime().availableProcessors());
+            } catch (IOException e) {
+                throw new HttpcException("Error starting the non-blocking engine", e);
+            }
+        }
+    }
+
+    /**
+     * A single request/response carried out by an event loop
+     */
+    public static class Exchange {
+        private final InetSocketAddress address;
+        private final ByteBuffer requestHead;
+        private final Path bodyFile;
+        private final OutputStream sink;
+        private final boolean includeHead;
+        private final boolean decodeBody;
+        private final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+        private final HttpResponseParser parser = new HttpResponseParser();
+        private SocketChannel channel;
+        private FileChannel file;
+        private long filePosition = 0;
+        private boolean headParsed = false;
+        private ContentDecoder decoder;
+        private Timings timings = new Timings();
+
+        /**
+         * @param address     Where to connect
+         * @param requestHead Encoded request head, including any inline body
+         * @param bodyFile    File to send after the request head, or null
+         * @param sink        Destination of the response body, written from the event loop thread
+         * @param includeHead Whether the response status line and headers are written to the sink too
+         * @param decodeBody  Whether a gzip or deflate Content-Encoding is decoded on the way to the sink
+         */
+        public Exchange(final InetSocketAddress address, final byte[] requestHead, final Path bodyFile,
+                final OutputStream sink, final boolean includeHead, final boolean decodeBody) {
+            this.address = address;
+            this.requestHead = ByteBuffer.wrap(requestHead);
+            this.bodyFile = bodyFile;
+            this.sink = sink;
+            this.includeHead = includeHead;
+            this.decodeBody = decodeBody;
+            this.parser.reset(true);
+        }
+
+        /**
+         * Record the exchange's phases into the given timings rather than its own,
+         * from the event loop thread. They can be read once the future completes.
+         *
+         * @param timings
+         */
+        public void setTimings(final Timings timings) {
+            this.timings = timings;
+        }
+
+        /**
+         * Status and headers of the response, once the future completes
+         * @return
+         */
+        public HttpResponseParser getParser() {
+            return this.parser;
+        }
+    }
+
+    /**
+     * A selector and the thread that services it
+     */
+    private static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Exchange> pending = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+        private volatile boolean closed = false;
+
+        // Shared by every exchange on this loop, the parser consumes all of it on each read
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        private EventLoop(final String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        private void submit(final Exchange exchange) {
+            if (closed) {
+                exchange.future.completeExceptionally(new IOException("Engine is shut down"));
+                return;
+            }
+
+            pending.add(exchange);
+            selector.wakeup();
+        }
+
+        private void close() {
+            closed = true;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    selector.select();
+                    registerPending();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        final SelectionKey key = keys.next();
+                        keys.remove();
+                        handle(key);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                // Fall through and fail everything still attached
+            } finally {
+                shutdownNow();
+            }
+        }
+
+        private void registerPending() {
+            Exchange exchange;
+
+            while ((exchange = pending.poll()) != null) {
+                try {
+                    final SocketChannel channel = SocketChannel.open();
+                    exchange.channel = channel;
+                    Metrics.getDefault().connectionOpened();
+
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                    if (channel.connect(exchange.address)) {
+                        exchange.timings.markConnected(false);
+                        channel.register(selector, SelectionKey.OP_WRITE, exchange);
+                    } else {
+                        channel.register(selector, SelectionKey.OP_CONNECT, exchange);
+                    }
+                } catch (IOException e) {
+                    fail(exchange, e);
+                }
+            }
+        }
+
+        private void handle(final SelectionKey key) {
+            final Exchange exchange = (Exchange) key.attachment();
+
+            try {
+                if (!key.isValid()) {
+                    return;
+                }
+
+                if (key.isConnectable() && exchange.channel.finishConnect()) {
+                    exchange.timings.markConnected(false);
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+
+                if (key.isValid() && key.isWritable() && write(exchange)) {
+                    exchange.timings.markSent();
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+
+                if (key.isValid() && key.isReadable()) {
+                    read(exchange);
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(exchange, e);
+            }
+        }
+
+        /**
+         * Write as much of the request as the socket takes
+         * @return True once the whole request has been sent
+         */
+        private boolean write(final Exchange exchange) throws IOException {
+            final SocketChannel channel = exchange.channel;
+
+            if (exchange.requestHead.hasRemaining()) {
+                exchange.timings.addBytesSent(channel.write(exchange.requestHead));
+
+                if (exchange.requestHead.hasRemaining()) {
+                    return false;
+                }
+            }
+
+            if (exchange.bodyFile != null) {
+                if (exchange.file == null) {
+                    exchange.file = FileChannel.open(exchange.bodyFile, StandardOpenOption.READ);
+                }
+
+                final long size = exchange.file.size();
+                while (exchange.filePosition < size) {
+                    final long sent = exchange.file.transferTo(exchange.filePosition, size - exchange.filePosition, channel);
+
+                    // Socket buffer is full, wait until it's writable again
+                    if (sent == 0) {
+                        return false;
+                    }
+                    exchange.filePosition += sent;
+                    exchange.timings.addBytesSent(sent);
+                }
+
+                exchange.file.close();
+            }
+
+            return true;
+        }
+
+        private void read(final Exchange exchange) throws IOException {
+            final ByteBuffer buffer = this.readBuffer;
+            buffer.clear();
+
+            final int read = exchange.channel.read(buffer);
+            if (read < 0) {
+                exchange.parser.endOfInput();
+                complete(exchange);
+                return;
+            }
+
+            buffer.flip();
+            exchange.timings.addBytesReceived(read);
+
+            if (!exchange.headParsed) {
+                if (read > 0 && exchange.timings.getBytesReceived() == read) {
+                    exchange.timings.markFirstByte();
+                }
+                if (!exchange.parser.parseHead(buffer)) {
+                    return;
+                }
+
+                exchange.headParsed = true;
+                if (exchange.includeHead) {
+                    exchange.sink.write((exchange.parser.getHead() + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                if (exchange.decodeBody) {
+                    exchange.decoder = ContentDecoder.of(exchange.parser.getHeader("Content-Encoding"), exchange.sink);
+                }
+            }
+
+            if (exchange.parser.parseBody(buffer, exchange.decoder != null ? exchange.decoder : exchange.sink)) {
+                complete(exchange);
+            }
+        }
+
+        private void complete(final Exchange exchange) throws IOException {
+            closeQuietly(exchange);
+            if (exchange.decoder != null) {
+                exchange.decoder.finish();
+            }
+            exchange.sink.flush();
+            exchange.future.complete(exchange.parser.getStatusCode());
+        }
+
+        private void fail(final Exchange exchange, final Exception e) {
+            closeQuietly(exchange);
+            exchange.future.completeExceptionally(e);
+        }
+
+        private void closeQuietly(final Exchange exchange) {
+            try {
+                if (exchange.channel != null && exchange.channel.isOpen()) {
+                    Metrics.getDefault().connectionClosed();
+                    exchange.channel.close();
+                }
+                if (exchange.file != null) {
+                    exchange.file.close();
+                }
+            } catch (IOException e) {
+                // Nothing left to do with a channel we couldn't close
+            }
+        }
+
+        private void shutdownNow() {
+            final IOException closed = new IOException("Engine is shut down");
+
+            for (SelectionKey key : selector.keys()) {
+                fail((Exchange) key.attachment(), closed);
+            }
+
+            Exchange exchange;
+            while ((exchange = pending.poll()) != null) {
+                fail(exchange, closed);
+            }
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Already shutting down
+            }
+        }
+    }
+}
@@ -0,0 +1,369 @@
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Offline performance regression suite: runs httpc requests through
+ * CommandProcessor and HttpRequestHandler against a LoopbackServer and checks
+ * each scenario against its throughput, latency, connection and memory limits.
+ *
+ * Usage: 'java PerformanceSuite [name-filter]'
+ *
+ * Exits with status 1 if any scenario is over a limit, so it can gate a build.
+ * The limits are deliberately loose, to catch regressions (a lost keep-alive,
+ * a body buffered in memory, a per request thread) rather than noise. Any of
+ * them can be overridden with a system property, eg.
+ * '-Dperf.get.small.keepAlive.minThroughput=5000'.
+ */
+public class PerformanceSuite {
+    private static final int KB = 1024;
+    private static final int MB = 1024 * 1024;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static LoopbackServer server;
+    private static LoopbackServer tlsServer;
+    // Throughput of every scenario run so far, by name
+    private static final Map<String, Double> throughputs = new HashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        final String filter = args.length > 0 ? args[0] : "";
+        final Path postFile = Files.createTempFile("httpc-perf", ".bin");
+        postFile.toFile().deleteOnExit();
+        Files.write(postFile, new byte[64 * KB]);
+
+        // The client trusts the https server's self signed certificate through its key store
+        final Path keyStore = Files.createTempFile("httpc-perf", ".p12");
+        keyStore.toFile().deleteOnExit();
+        final SSLContext tls = LoopbackServer.selfSignedTls(keyStore);
+        System.setProperty("javax.net.ssl.trustStore", keyStore.toString());
+        System.setProperty("javax.net.ssl.trustStorePassword", LoopbackServer.KEY_STORE_PASSWORD);
+
+        final List<Scenario> scenarios = new ArrayList<>();
+
+        // ============================== GET ============================== //
+
+        scenarios.add(new Scenario("get.small.keepAlive", 4, 4000, "get", "/bytes/512", "--http1.1")
+            .minThroughput(2000).maxP99Millis(50).maxConnections(4).maxAllocatedPerRequest(64 * KB));
+        scenarios.add(new Scenario("get.small.close", 4, 1000, "get", "/bytes/512")
+            .minThroughput(300).maxP99Millis(100).maxAllocatedPerRequest(64 * KB));
+        scenarios.add(new Scenario("get.small.nio", 16, 4000, "get", "/bytes/512", "--nio")
+            .minThroughput(1000).maxP99Millis(100).maxAllocatedPerRequest(64 * KB));
+        scenarios.add(new Scenario("get.large", 2, 40, "get", "/bytes/" + 8 * MB, "--http1.1")
+            .minThroughput(4).maxConnections(2).maxAllocatedPerRequest(MB));
+        scenarios.add(new Scenario("get.large.chunked", 2, 40, "get", "/bytes/" + 8 * MB + "?chunked=1", "--http1.1")
+            .minThroughput(4).maxConnections(2).maxAllocatedPerRequest(MB));
+        scenarios.add(new Scenario("get.delayed", 16, 320, "get", "/bytes/512?delay=20", "--http1.1")
+            .minThroughput(400).maxP99Millis(60).maxConnections(16));
+
+        // ============================== ADAPTIVE ============================== //
+
+        // A HostLimiter must find a healthy host's capacity, not mistake loopback jitter for overload
+        scenarios.add(new Scenario("get.small.wide", 64, 4000, "get", "/bytes/512", "--http1.1")
+            .minThroughput(1000));
+        scenarios.add(new Scenario("get.small.adaptive", 64, 4000, "get", "/bytes/512", "--http1.1")
+            .adaptive().minThroughputOf("get.small.wide", 0.8));
+        scenarios.add(new Scenario("get.delayed.adaptive", 16, 320, "get", "/bytes/512?delay=20", "--http1.1")
+            .adaptive().minThroughputOf("get.delayed", 0.8));
+
+        // ============================== HTTPS ============================== //
+
+        scenarios.add(new Scenario("get.small.tls.keepAlive", 4, 4000, "get", "/bytes/512", "--http1.1")
+            .tls().minThroughput(1000).maxP99Millis(50).maxConnections(4).maxAllocatedPerRequest(64 * KB));
+        // A handshake per request, resumed from the session cache after the first
+        scenarios.add(new Scenario("get.small.tls.close", 4, 400, "get", "/bytes/512")
+            .tls().minThroughput(50).maxP99Millis(200));
+
+        // ============================== POST ============================== //
+
+        scenarios.add(new Scenario("post.file", 4, 1000, "post", "/echo", "--http1.1", "-f", postFile.toString())
+            .minThroughput(300).maxP99Millis(100).maxConnections(4).maxAllocatedPerRequest(256 * KB));
+        scenarios.add(new Scenario("post.file.tls", 4, 1000, "post", "/echo", "--http1.1", "-f", postFile.toString())
+            .tls().minThroughput(100).maxP99Millis(100).maxConnections(4).maxAllocatedPerRequest(512 * KB));
+
+        // ============================== FAILURES ============================== //
+
+        // Every request fails, but promptly and without leaking connections
+        scenarios.add(new Scenario("get.dropped", 4, 200, "get", "/bytes/65536?drop=1", "--http1.1")
+            .expectErrors().maxP99Millis(100));
+
+        boolean passed = true;
+
+        try (
+            LoopbackServer loopback = new LoopbackServer(0, true);
+            LoopbackServer tlsLoopback = new LoopbackServer(0, true, tls);
+        ) {
+            server = loopback;
+            tlsServer = tlsLoopback;
+
+            for (Scenario scenario : scenarios) {
+                if (scenario.name.contains(filter)) {
+                    passed &= scenario.check(scenario.run());
+                }
+            }
+        } finally {
+            ConnectionPool.getDefault().closeIdle();
+        }
+
+        if (Metrics.getDefault().getOpenConnections() != 0) {
+            System.out.println("FAIL " + Metrics.getDefault().getOpenConnections() + " connections left open");
+            passed = false;
+        }
+
+        System.out.println(passed ? "All scenarios passed" : "Performance regression");
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * One command sent repeatedly from a fixed number of threads, and the limits its results must meet
+     */
+    private static class Scenario {
+        private final String name;
+        private final int concurrency;
+        private final int requests;
+        private final String[] command;
+
+        private double minThroughput = 0;
+        private double maxP99Millis = Double.MAX_VALUE;
+        private long maxConnections = Long.MAX_VALUE;
+        private long maxAllocatedPerRequest = Long.MAX_VALUE;
+        private boolean expectErrors = false;
+        private boolean tls = false;
+        private boolean adaptive = false;
+        private String baseline = null;
+        private double minThroughputRatio = 0;
+        private HostLimiter limiter = null;
+
+        /**
+         * @param command httpc command with the path in place of the URL
+         */
+        private Scenario(final String name, final int concurrency, final int requests, final String... command) {
+            this.name = name;
+            this.concurrency = concurrency;
+            this.requests = requests;
+            this.command = command;
+        }
+
+        private Scenario minThroughput(final double requestsPerSecond) {
+            this.minThroughput = limit("minThroughput", requestsPerSecond);
+            return this;
+        }
+
+        private Scenario maxP99Millis(final double millis) {
+            this.maxP99Millis = limit("maxP99Millis", millis);
+            return this;
+        }
+
+        /**
+         * Connections the server may see for the whole scenario, ie. how well they're reused
+         */
+        private Scenario maxConnections(final long connections) {
+            this.maxConnections = (long) limit("maxConnections", connections);
+            return this;
+        }
+
+        private Scenario maxAllocatedPerRequest(final long bytes) {
+            this.maxAllocatedPerRequest = (long) limit("maxAllocatedPerRequest", bytes);
+            return this;
+        }
+
+        /**
+         * Throughput that must be at least a share of another scenario's, if that one ran first
+         */
+        private Scenario minThroughputOf(final String scenario, final double ratio) {
+            this.baseline = scenario;
+            this.minThroughputRatio = limit("minThroughputRatio", ratio);
+            return this;
+        }
+
+        /**
+         * Send every request through a HostLimiter allowing up to 'concurrency' in flight, like 'batch --adaptive'
+         */
+        private Scenario adaptive() {
+            this.adaptive = true;
+            return this;
+        }
+
+        private Scenario expectErrors() {
+            this.expectErrors = true;
+            return this;
+        }
+
+        /**
+         * Send the requests to the https server
+         */
+        private Scenario tls() {
+            this.tls = true;
+            return this;
+        }
+
+        private LoopbackServer server() {
+            return this.tls ? tlsServer : server;
+        }
+
+        private double limit(final String limit, final double defaultValue) {
+            final String override = System.getProperty("perf." + this.name + "." + limit);
+            return override != null ? Double.parseDouble(override) : defaultValue;
+        }
+
+        /**
+         * Warm up with a quarter of the requests, then measure the full count
+         */
+        private Result run() throws Exception {
+            // One limiter for the whole run, it starts low and has to find the host's capacity
+            this.limiter = this.adaptive ? new HostLimiter(this.concurrency, this.concurrency) : null;
+
+            send(Math.max(1, this.requests / 4));
+            ConnectionPool.getDefault().closeIdle();
+
+            final long connectionsBefore = server().getConnections();
+            final Result result = send(this.requests);
+            result.connections = server().getConnections() - connectionsBefore;
+
+            ConnectionPool.getDefault().closeIdle();
+            return result;
+        }
+
+        private Result send(final int count) throws Exception {
+            final String[] args = this.command.clone();
+            args[1] = server().getBaseUrl() + args[1];
+
+            final AtomicLong remaining = new AtomicLong(count);
+            final ExecutorService executor = Executors.newFixedThreadPool(this.concurrency);
+            final List<Future<Result>> futures = new ArrayList<>();
+
+            final long start = System.nanoTime();
+            for (int i = 0; i < this.concurrency; i++) {
+                futures.add(executor.submit(() -> sendUntilDone(args, remaining, this.limiter, server().getBaseUrl())));
+            }
+
+            final Result total = new Result();
+            try {
+                for (Future<Result> future : futures) {
+                    total.merge(future.get());
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            total.elapsedNanos = System.nanoTime() - start;
+            return total;
+        }
+
+        private boolean check(final Result result) {
+            final long count = result.histogram.getTotalCount();
+            final double throughput = count / (result.elapsedNanos / 1e9);
+            final double p99Millis = result.histogram.getValueAtPercentile(99) / 1e6;
+            final long allocatedPerRequest = count > 0 ? result.allocatedBytes / count : 0;
+            final List<String> failures = new ArrayList<>();
+
+            if (this.expectErrors) {
+                if (result.errors != count) {
+                    failures.add(String.format("%d of %d requests succeeded", count - result.errors, count));
+                }
+            } else if (result.errors > 0) {
+                failures.add(result.errors + " errors, last: " + result.lastError);
+            }
+
+            if (throughput < this.minThroughput) {
+                failures.add(String.format("throughput %.1f/s < %.1f/s", throughput, this.minThroughput));
+            }
+            final Double baselineThroughput = this.baseline != null ? throughputs.get(this.baseline) : null;
+            if (baselineThroughput != null && throughput < baselineThroughput * this.minThroughputRatio) {
+                failures.add(String.format("throughput %.1f/s < %.0f%% of %s's %.1f/s",
+                    throughput, this.minThroughputRatio * 100, this.baseline, baselineThroughput));
+            }
+            throughputs.put(this.name, throughput);
+            if (p99Millis > this.maxP99Millis) {
+                failures.add(String.format("p99 %.3fms > %.3fms", p99Millis, this.maxP99Millis));
+            }
+            if (result.connections > this.maxConnections) {
+                failures.add(String.format("%d connections > %d", result.connections, this.maxConnections));
+            }
+            if (allocatedPerRequest > this.maxAllocatedPerRequest) {
+                failures.add(String.format("allocated %d bytes/request > %d", allocatedPerRequest, this.maxAllocatedPerRequest));
+            }
+
+            System.out.println(String.format("%-4s %-24s %10.1f req/s  p99 %8.3fms  %5d conns  %9d B/req",
+                failures.isEmpty() ? "OK" : "FAIL", this.name, throughput, p99Millis, result.connections, allocatedPerRequest));
+            for (String failure : failures) {
+                System.out.println("       " + failure);
+            }
+
+            return failures.isEmpty();
+        }
+    }
+
+    /**
+     * Send requests on this thread until the shared count runs out
+     *
+     * @param limiter Limiter to wait for before every request, or null
+     * @param route   Route the limiter knows the server by
+     */
+    private static Result sendUntilDone(final String[] args, final AtomicLong remaining, final HostLimiter limiter,
+            final String route) {
+        final Request request = new CommandProcessor(args).getRequest();
+        final OutputStream discard = OutputStream.nullOutputStream();
+        final Result result = new Result();
+        final long allocatedBefore = THREADS.getCurrentThreadAllocatedBytes();
+
+        while (remaining.getAndDecrement() > 0) {
+            final long start = System.nanoTime();
+            final HostLimiter.Permit permit = limiter != null ? limiter.acquire(route).join() : null;
+            boolean failed = false;
+
+            try {
+                final HttpRequestHandler handler = new HttpRequestHandler(request)
+                    .formatRequest()
+                    .submitRequest();
+                if (permit != null) {
+                    permit.responded();
+                }
+                handler.outputResponse(discard);
+            } catch (HttpcException e) {
+                failed = true;
+                result.errors++;
+                result.lastError = e.getMessage();
+            } finally {
+                if (permit != null) {
+                    permit.release(failed);
+                }
+            }
+
+            result.histogram.record(System.nanoTime() - start);
+        }
+
+        result.allocatedBytes = THREADS.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        return result;
+    }
+
+    private static class Result {
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private long errors = 0;
+        private String lastError = null;
+        private long allocatedBytes = 0;
+        private long connections = 0;
+        private long elapsedNanos = 0;
+
+        private void merge(final Result other) {
+            this.histogram.merge(other.histogram);
+            this.errors += other.errors;
+            this.allocatedBytes += other.allocatedBytes;
+            if (other.lastError != null) {
+                this.lastError = other.lastError;
+            }
+        }
+    }
+}
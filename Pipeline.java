@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sends several GET requests to the same host over one HTTP/1.1 connection,
+ * writing them all back to back before reading any response. Responses come
+ * back in the order the requests were written, so each one is matched to its
+ * request by position and written to that request's output.
+ *
+ * If the server closes the connection part way (Connection: close, an idle
+ * timeout or an error), the requests it didn't answer are written again on a
+ * fresh connection. A request only fails once a fresh connection can't answer
+ * it either.
+ */
+public class Pipeline {
+
+    private final List<Request> requests;
+    private final ConnectionPool pool;
+    private final DnsCache dnsCache;
+
+    // Position of the first request still without a response
+    private int next = 0;
+
+    public Pipeline(final List<Request> requests) {
+        this(requests, ConnectionPool.getDefault(), DnsCache.getDefault());
+    }
+
+    /**
+     * @param requests GET requests to the same host, pipelining switches them to HTTP/1.1
+     * @param pool     Pool to lease the connection from
+     * @param dnsCache Cache to resolve the host through
+     */
+    public Pipeline(final List<Request> requests, final ConnectionPool pool, final DnsCache dnsCache) {
+        this.requests = requests;
+        this.pool = pool;
+        this.dnsCache = dnsCache;
+    }
+
+    /**
+     * Send every request and output every response
+     *
+     * @return The error for each request by position, null for the ones that succeeded
+     */
+    public HttpcException[] run() {
+        final HttpcException[] failures = new HttpcException[this.requests.size()];
+        final HttpRequestHandler[] handlers = new HttpRequestHandler[this.requests.size()];
+
+        if (handlers.length == 0) {
+            return failures;
+        }
+
+        for (int i = 0; i < handlers.length; i++) {
+            final Request request = this.requests.get(i);
+            request.setKeepAlive(true);
+            handlers[i] = new HttpRequestHandler(request, this.pool, this.dnsCache).formatRequest();
+        }
+
+        final InetAddress web;
+        try {
+            web = handlers[0].resolveHost();
+        } catch (HttpcException e) {
+            Arrays.fill(failures, e);
+            return failures;
+        }
+
+        this.next = 0;
+        while (this.next < handlers.length) {
+            ConnectionPool.Connection connection = null;
+            final int start = this.next;
+
+            try {
+                final Request first = this.requests.get(0);
+                connection = this.pool.acquire(web, first.getHost(), first.getPort(), first.isSecure());
+                send(connection, handlers, failures);
+            } catch (IOException e) {
+                // Whatever was answered before the failure counts, the rest is sent again. Only
+                // give up on a request if even a fresh connection made no progress with it.
+                if (this.next == start && (connection == null || !connection.isReused())) {
+                    failures[this.next++] = new HttpcException("Error communicating with host", e);
+                }
+            } finally {
+                if (connection != null) {
+                    this.pool.release(connection,
+                        this.next >= handlers.length && handlers[handlers.length - 1].isConnectionReusable());
+                }
+            }
+        }
+
+        return failures;
+    }
+
+    /**
+     * Write every request still without a response, then read responses until
+     * they're all in or the server stops answering on this connection
+     */
+    private void send(final ConnectionPool.Connection connection, final HttpRequestHandler[] handlers,
+            final HttpcException[] failures) throws IOException {
+        for (int i = this.next; i < handlers.length; i++) {
+            handlers[i].writePipelined(connection);
+        }
+        connection.getOutputStream().flush();
+
+        for (int i = this.next; i < handlers.length; i++) {
+            final HttpRequestHandler handler = handlers[i];
+            handler.readPipelined(connection);
+
+            final String outputFile = this.requests.get(i).getOutputFile();
+            OutputStream sink = System.out;
+
+            if (outputFile != null) {
+                try {
+                    sink = Utils.openOutputFile(outputFile);
+                } catch (IOException e) {
+                    // The response still has to be read off the connection to get to the next one
+                    failures[i] = new HttpcException("Error writing to file: " + outputFile, e);
+                    sink = OutputStream.nullOutputStream();
+                }
+            }
+
+            try {
+                handler.outputResponse(sink);
+            } catch (HttpcException e) {
+                throw new IOException(e.getMessage(), e.getCause());
+            } finally {
+                if (sink != System.out) {
+                    sink.close();
+                }
+            }
+
+            this.next = i + 1;
+
+            // The server won't answer anything after this response, send the rest again
+            if (!handler.isConnectionReusable()) {
+                return;
+            }
+        }
+    }
+}
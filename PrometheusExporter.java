@@ -0,0 +1,147 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes Metrics to a file in the Prometheus text format every few seconds,
+ * for node_exporter's textfile collector or anything else that scrapes files.
+ * The file is replaced atomically, so a reader never sees a partial write.
+ *
+ * The interval defaults to the 'httpc.metrics.interval' system property, in seconds.
+ */
+public class PrometheusExporter {
+    private static final long DEFAULT_INTERVAL_SECONDS = Long.getLong("httpc.metrics.interval", 10);
+
+    private final Metrics metrics;
+    private final Path file;
+    private final ScheduledExecutorService scheduler;
+
+    public PrometheusExporter(final Metrics metrics, final Path file) {
+        this.metrics = metrics;
+        this.file = file;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "httpc-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start exporting the default metrics to a file
+     *
+     * @param file Destination, or null for none
+     * @return The running exporter, or null without a file
+     */
+    public static PrometheusExporter start(final String file) {
+        if (file == null) {
+            return null;
+        }
+
+        final PrometheusExporter exporter = new PrometheusExporter(Metrics.getDefault(), Utils.resolvePath(file));
+        exporter.start();
+        return exporter;
+    }
+
+    /**
+     * Write the file now, then every interval until stopped
+     */
+    public void start() {
+        this.scheduler.scheduleAtFixedRate(this::writeQuietly, 0, DEFAULT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the periodic writes and write the final values
+     */
+    public void stop() {
+        this.scheduler.shutdownNow();
+        try {
+            this.scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writeQuietly();
+    }
+
+    /**
+     * Replace the file with the current values
+     * @throws IOException
+     */
+    public void write() throws IOException {
+        final Path directory = this.file.toAbsolutePath().getParent();
+        final Path temp = Files.createTempFile(directory, "metrics", ".tmp");
+
+        try (
+            Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8);
+        ) {
+            writer.write(format(this.metrics));
+        }
+        Files.move(temp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void writeQuietly() {
+        try {
+            write();
+        } catch (IOException e) {
+            // A missed write is made up by the next one
+        }
+    }
+
+    /**
+     * Metrics in the Prometheus text exposition format
+     *
+     * @param metrics
+     * @return
+     */
+    public static String format(final Metrics metrics) {
+        StringBuilder out = new StringBuilder();
+
+        out.append("# HELP httpc_requests_total Requests that received a response, by status class.\n");
+        out.append("# TYPE httpc_requests_total counter\n");
+        for (int statusClass = 1; statusClass <= 5; statusClass++) {
+            out.append("httpc_requests_total{class=\"").append(statusClass).append("xx\"} ")
+                .append(metrics.getRequests(statusClass)).append('\n');
+        }
+
+        counter(out, "httpc_request_errors_total", "Requests that failed without a response.", metrics.getErrors());
+        counter(out, "httpc_bytes_sent_total", "Bytes of requests sent.", metrics.getBytesSent());
+        counter(out, "httpc_bytes_received_total", "Bytes of responses received.", metrics.getBytesReceived());
+        counter(out, "httpc_pool_hits_total", "Requests sent on a reused pooled connection.", metrics.getPoolHits());
+        counter(out, "httpc_pool_misses_total", "Pooled requests that had to open a connection.", metrics.getPoolMisses());
+
+        out.append("# HELP httpc_open_connections Connections currently open.\n");
+        out.append("# TYPE httpc_open_connections gauge\n");
+        out.append("httpc_open_connections ").append(metrics.getOpenConnections()).append('\n');
+
+        // Prometheus buckets are cumulative
+        final double[] bounds = Metrics.getLatencyBucketBounds();
+        final long[] counts = metrics.getLatencyBucketCounts();
+        long cumulative = 0;
+
+        out.append("# HELP httpc_request_duration_seconds Time from sending a request to the end of its response.\n");
+        out.append("# TYPE httpc_request_duration_seconds histogram\n");
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            final String bound = i < bounds.length ? String.format(Locale.ROOT, "%s", bounds[i]) : "+Inf";
+            out.append("httpc_request_duration_seconds_bucket{le=\"").append(bound).append("\"} ")
+                .append(cumulative).append('\n');
+        }
+        out.append("httpc_request_duration_seconds_sum ")
+            .append(String.format(Locale.ROOT, "%.9f", metrics.getLatencySumSeconds())).append('\n');
+        out.append("httpc_request_duration_seconds_count ").append(cumulative).append('\n');
+
+        return out.toString();
+    }
+
+    private static void counter(final StringBuilder out, final String name, final String help, final long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+}
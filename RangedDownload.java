@@ -0,0 +1,465 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads a resource into the output file over several connections at once.
+ *
+ * A probe for the first byte ('Range: bytes=0-0') finds out whether the server
+ * supports ranges and how big the resource is. If it does, the output file is
+ * sized up front and split into one byte range per connection, and each part
+ * is written straight into its region of the file through a memory mapping.
+ * If it doesn't, the probe's response already is the whole resource and is
+ * streamed to the file as a single download.
+ *
+ * Progress is recorded next to the output file, so running the same command
+ * again after a failure only fetches what's missing. Resumed parts carry
+ * If-Range, and the download starts over if the resource has changed.
+ */
+public class RangedDownload {
+    public static final int MAX_PARALLELISM = 16;
+
+    // Parts smaller than this aren't worth their own connection
+    private static final long MIN_PART_BYTES = 1024 * 1024;
+    // Parts are mapped a window at a time, so no mapping has to cover a whole multi-gigabyte part
+    private static final long MAP_WINDOW_BYTES = 64L * 1024 * 1024;
+    // How much a part downloads between progress records
+    private static final long CHECKPOINT_BYTES = 16L * 1024 * 1024;
+    private static final String STATE_SUFFIX = ".parts";
+
+    private final Request request;
+    private final Path output;
+    private final Path stateFile;
+
+    private long total;
+    private String validator;
+    private List<Part> parts;
+    private FileChannel channel;
+
+    /**
+     * @param request GET request with an output file and its parallelism
+     */
+    public RangedDownload(final Request request) {
+        this.request = request;
+        this.output = Utils.resolvePath(Utils.outputFileName(request.getOutputFile()));
+        this.stateFile = this.output.resolveSibling(this.output.getFileName() + STATE_SUFFIX);
+    }
+
+    /**
+     * Download the resource, resuming a previous attempt when there is one
+     */
+    public void run() {
+        if (loadState()) {
+            if (downloadParts()) {
+                return;
+            }
+
+            // The resource changed since the partial download, nothing of it can be kept
+            deleteQuietly(this.stateFile);
+        }
+
+        probe();
+    }
+
+    /**
+     * Request the first byte. A 206 tells us the total size, anything else is
+     * the whole resource and is written out as it is.
+     */
+    private void probe() {
+        final Request probe = partRequest();
+        probe.setHeader(Headers.RANGE, "bytes=0-0");
+        probe.setVerbose(this.request.isVerbose());
+
+        final HttpRequestHandler handler = new HttpRequestHandler(probe)
+            .formatRequest()
+            .submitRequest();
+
+        final long size = handler.getStatusCode() == 206 ? totalLength(handler.getResponseHeader(Headers.CONTENT_RANGE)) : -1;
+
+        if (size < 0) {
+            // No range support: a plain single stream download
+            handler.outputResponse();
+            return;
+        }
+
+        // The file only holds the resource itself, so the probe's head goes to the console
+        if (this.request.isVerbose()) {
+            System.out.println(handler.getResponseHead());
+        }
+        handler.outputResponse(OutputStream.nullOutputStream());
+
+        this.total = size;
+        this.validator = handler.getResponseHeader("ETag") != null
+            ? handler.getResponseHeader("ETag")
+            : handler.getResponseHeader("Last-Modified");
+        this.parts = split(size, this.request.getParallelism());
+
+        try (
+            RandomAccessFile file = new RandomAccessFile(this.output.toFile(), "rw");
+        ) {
+            file.setLength(size);
+        } catch (IOException e) {
+            throw new HttpcException("Error writing to file: " + this.output, e);
+        }
+
+        if (!downloadParts()) {
+            throw new HttpcException("Resource changed during the download: " + this.request.getUrl());
+        }
+    }
+
+    /**
+     * Fetch every part that isn't complete yet, in parallel
+     *
+     * @return False if the server no longer serves the same resource for our ranges
+     */
+    private boolean downloadParts() {
+        final ExecutorService executor = Utils.newRequestExecutor();
+        final List<Future<Boolean>> results = new ArrayList<>();
+        HttpcException failure = null;
+        boolean unchanged = true;
+
+        try {
+            this.channel = FileChannel.open(this.output, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new HttpcException("Error writing to file: " + this.output, e);
+        }
+
+        try {
+            saveState();
+
+            for (Part part : this.parts) {
+                if (!part.isComplete()) {
+                    results.add(executor.submit(() -> downloadPart(part)));
+                }
+            }
+
+            for (Future<Boolean> result : results) {
+                try {
+                    unchanged &= result.get();
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof HttpcException
+                        ? (HttpcException) e.getCause()
+                        : new HttpcException("Error communicating with host", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = new HttpcException("Download interrupted", e);
+                }
+            }
+        } finally {
+            executor.shutdown();
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                // Every part has finished with it
+            }
+        }
+
+        if (!unchanged) {
+            return false;
+        }
+
+        if (failure != null) {
+            // Without a validator loadState() won't trust the partial download, so there's nothing to resume
+            if (this.validator == null) {
+                deleteQuietly(this.stateFile);
+                throw failure;
+            }
+
+            saveState();
+            throw new HttpcException(failure.getMessage() + ", run the same command again to resume the download",
+                failure.getCause());
+        }
+
+        deleteQuietly(this.stateFile);
+        return true;
+    }
+
+    /**
+     * Fetch the rest of one part into its region of the file
+     *
+     * @return False if the server answered with the whole (changed) resource instead of the range
+     * @throws HttpcException Also if the server sent another range than the one requested
+     */
+    private boolean downloadPart(final Part part) {
+        final Request range = partRequest();
+        range.setHeader(Headers.RANGE, "bytes=" + part.next + "-" + part.end);
+
+        if (this.validator != null) {
+            range.setHeader(Headers.IF_RANGE, this.validator);
+        }
+
+        final HttpRequestHandler handler = new HttpRequestHandler(range)
+            .formatRequest()
+            .submitRequest();
+
+        final int status = handler.getStatusCode();
+
+        if (status != 206) {
+            handler.discardResponse();
+
+            if (status == 200) {
+                return false;
+            }
+            throw new HttpcException("Server answered a range request with " + status);
+        }
+
+        // Bytes of another range would land at the wrong place in the file
+        final String contentRange = handler.getResponseHeader(Headers.CONTENT_RANGE);
+        final long[] sent = contentRange(contentRange);
+        if (sent == null || sent[0] != part.next || sent[1] != part.end || sent[2] != this.total) {
+            handler.discardResponse();
+            throw new HttpcException("Server sent " + (contentRange != null ? "'" + contentRange + "'" : "no Content-Range")
+                + " for the range bytes=" + part.next + "-" + part.end + "/" + this.total);
+        }
+
+        handler.outputResponse(new PartOutputStream(part));
+
+        if (!part.isComplete()) {
+            throw new HttpcException("Connection closed before the range was received");
+        }
+        return true;
+    }
+
+    /**
+     * The request for a probe or a part: HTTP/1.1 so parts reuse pooled
+     * connections, and nothing that would change the bytes or where they go
+     */
+    private Request partRequest() {
+        final Request copy = new Request(this.request);
+
+        copy.setKeepAlive(true);
+        copy.setVerbose(false);
+        copy.setNonBlocking(false);
+        copy.setCompressed(false);
+        copy.setCacheDirectory(null);
+        copy.setParallelism(1);
+        copy.setWriteOut(null);
+        copy.setTimingsJson(false);
+
+        return copy;
+    }
+
+    /**
+     * Split the resource into at most 'count' ranges of similar size
+     */
+    private static List<Part> split(final long size, final int count) {
+        final int partCount = (int) Math.max(1, Math.min(count, size / MIN_PART_BYTES));
+        final long partSize = size / partCount;
+        final List<Part> parts = new ArrayList<>();
+
+        for (int i = 0; i < partCount; i++) {
+            final long start = i * partSize;
+            final long end = i == partCount - 1 ? size - 1 : start + partSize - 1;
+            parts.add(new Part(start, end, start));
+        }
+
+        return parts;
+    }
+
+    /**
+     * Total size from a 'Content-Range: bytes 0-0/12345' header
+     *
+     * @return The size, or -1 if it's missing or unknown
+     */
+    private static long totalLength(final String contentRange) {
+        if (contentRange == null || contentRange.indexOf('/') < 0) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * First byte, last byte and total size from a 'Content-Range: bytes 0-1023/12345' header
+     *
+     * @return The three of them, or null if the header is missing, malformed or the total unknown
+     */
+    private static long[] contentRange(final String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return null;
+        }
+
+        final int dash = contentRange.indexOf('-');
+        final int slash = contentRange.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            return null;
+        }
+
+        try {
+            return new long[] {
+                Long.parseLong(contentRange.substring(6, dash).trim()),
+                Long.parseLong(contentRange.substring(dash + 1, slash).trim()),
+                Long.parseLong(contentRange.substring(slash + 1).trim()),
+            };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // ============================== PROGRESS ============================== //
+
+    /**
+     * Load the progress of an earlier attempt at the same download
+     *
+     * @return True if there is one that can be resumed
+     */
+    private boolean loadState() {
+        if (!Files.isRegularFile(this.stateFile) || !Files.isRegularFile(this.output)) {
+            return false;
+        }
+
+        try (
+            Reader reader = Files.newBufferedReader(this.stateFile, StandardCharsets.UTF_8);
+        ) {
+            Properties state = new Properties();
+            state.load(reader);
+
+            // Without a validator there's no telling whether the resource changed in between
+            if (!this.request.getUrl().equals(state.getProperty("url")) || state.getProperty("validator") == null) {
+                return false;
+            }
+
+            this.total = Long.parseLong(state.getProperty("total"));
+            this.validator = state.getProperty("validator");
+            this.parts = new ArrayList<>();
+
+            final int count = Integer.parseInt(state.getProperty("parts"));
+            for (int i = 0; i < count; i++) {
+                this.parts.add(new Part(
+                    Long.parseLong(state.getProperty("part." + i + ".start")),
+                    Long.parseLong(state.getProperty("part." + i + ".end")),
+                    Long.parseLong(state.getProperty("part." + i + ".next"))
+                ));
+            }
+
+            return Files.size(this.output) == this.total;
+        } catch (IOException | RuntimeException e) {
+            // Unreadable progress is the same as none
+            return false;
+        }
+    }
+
+    /**
+     * Record how far every part has got. Parts only ever move forward, so a record
+     * that's slightly behind just means a few bytes are fetched twice on resume.
+     */
+    private synchronized void saveState() {
+        Properties state = new Properties();
+        state.setProperty("url", this.request.getUrl());
+        state.setProperty("total", Long.toString(this.total));
+        state.setProperty("parts", Integer.toString(this.parts.size()));
+        if (this.validator != null) {
+            state.setProperty("validator", this.validator);
+        }
+
+        for (int i = 0; i < this.parts.size(); i++) {
+            final Part part = this.parts.get(i);
+            state.setProperty("part." + i + ".start", Long.toString(part.start));
+            state.setProperty("part." + i + ".end", Long.toString(part.end));
+            state.setProperty("part." + i + ".next", Long.toString(part.next));
+        }
+
+        try {
+            final Path temp = Files.createTempFile(this.stateFile.toAbsolutePath().getParent(), "pending", ".tmp");
+            try (
+                Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8);
+            ) {
+                state.store(writer, null);
+            }
+            Files.move(temp, this.stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Only affects resuming, the download itself carries on
+        }
+    }
+
+    private static void deleteQuietly(final Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // Left behind, it's replaced on the next run
+        }
+    }
+
+    /**
+     * A byte range of the resource, and how much of it has been written
+     */
+    private static class Part {
+        private final long start;
+        private final long end;
+        private volatile long next;
+
+        private Part(final long start, final long end, final long next) {
+            this.start = start;
+            this.end = end;
+            this.next = next;
+        }
+
+        private boolean isComplete() {
+            return this.next > this.end;
+        }
+    }
+
+    /**
+     * Writes a part's bytes into its region of the output file, mapping it a window at a time
+     */
+    private class PartOutputStream extends OutputStream {
+        private final Part part;
+        private MappedByteBuffer window;
+        private long sinceCheckpoint = 0;
+
+        private PartOutputStream(final Part part) {
+            this.part = part;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (this.window == null || !this.window.hasRemaining()) {
+                    final long size = Math.min(MAP_WINDOW_BYTES, this.part.end + 1 - this.part.next);
+
+                    if (size <= 0) {
+                        throw new IOException("Server sent more than the requested range");
+                    }
+                    this.window = channel.map(FileChannel.MapMode.READ_WRITE, this.part.next, size);
+                }
+
+                final int length = Math.min(len, this.window.remaining());
+                this.window.put(b, off, length);
+                off += length;
+                len -= length;
+
+                this.part.next += length;
+                this.sinceCheckpoint += length;
+
+                if (this.sinceCheckpoint >= CHECKPOINT_BYTES) {
+                    this.sinceCheckpoint = 0;
+                    saveState();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import constants.Argument;
+import constants.Method;
+
+/**
+ * Sends the requests of a TrafficLog recorded with '--record' again, eg.
+ * 'httpc replay --target http://staging:8080 traffic.log'
+ *
+ * Requests go out byte for byte as recorded, straight from the memory mapped
+ * log, at the pace they were recorded at or, with '--fast', as fast as the
+ * concurrency allows. The log holds exchanges in the order they completed, so
+ * paced requests are sorted by when they started first. A target only changes
+ * where connections go: the request line and Host header are sent as recorded.
+ * Latency is measured from when each request was due, like 'bench --rate', and
+ * responses are discarded.
+ */
+public class ReplayRunner {
+    private static final int DEFAULT_CONCURRENCY = 64;
+    private static final double[] PERCENTILES = { 50, 90, 99 };
+
+    private final String[] args;
+    private String file = null;
+    private Request target = null;
+    private boolean fast = false;
+    private int concurrency = DEFAULT_CONCURRENCY;
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong changedStatuses = new AtomicLong();
+    private volatile String lastError = null;
+
+    public ReplayRunner(final String[] args) {
+        this.args = args;
+        evaluate();
+    }
+
+    /**
+     * Validate the replay arguments: 'replay [--fast] [--concurrency n] [--target url] log'
+     */
+    private void evaluate() {
+        for (int i = 1; i < args.length; i++) {
+            final Argument currentArg = Utils.parse(Argument.class, args[i]);
+
+            if (currentArg == Argument.FAST) {
+                this.fast = true;
+                continue;
+            }
+
+            if (currentArg == Argument.CONCURRENCY && i + 1 < args.length) {
+                try {
+                    this.concurrency = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    Utils.printHelpAndExit(Method.REPLAY);
+                }
+                continue;
+            }
+
+            if (currentArg == Argument.TARGET && i + 1 < args.length) {
+                this.target = new Request(Method.GET, args[++i]);
+                continue;
+            }
+
+            if (currentArg != null || this.file != null) {
+                Utils.printHelpAndExit(Method.REPLAY);
+            }
+
+            this.file = args[i];
+        }
+
+        if (this.file == null || this.concurrency < 1) {
+            Utils.printHelpAndExit(Method.REPLAY);
+        }
+    }
+
+    /**
+     * Send every recorded request, with at most 'concurrency' in flight, and print the results
+     */
+    public void run() {
+        final Semaphore permits = new Semaphore(this.concurrency);
+        final ExecutorService executor = Utils.newRequestExecutor();
+        final long start = System.nanoTime();
+        final List<TrafficLog.Record> records = new ArrayList<>();
+        long sent = 0;
+
+        try (
+            TrafficLog.Reader reader = new TrafficLog.Reader(Utils.resolvePath(this.file));
+        ) {
+            TrafficLog.Record record;
+            while ((record = reader.next()) != null) {
+                records.add(record);
+            }
+
+            // An exchange that started early may have completed after others that started later
+            if (!this.fast) {
+                records.sort(Comparator.comparingLong(TrafficLog.Record::getStart));
+            }
+
+            final long recordedStart = records.isEmpty() ? 0 : records.get(0).getStart();
+
+            for (TrafficLog.Record next : records) {
+                final long due = this.fast ? System.nanoTime() : start + (next.getStart() - recordedStart);
+                if (!Utils.sleepUntil(due)) {
+                    break;
+                }
+
+                permits.acquireUninterruptibly();
+                executor.execute(() -> {
+                    try {
+                        send(next, due);
+                    } finally {
+                        permits.release();
+                    }
+                });
+                sent++;
+            }
+
+            permits.acquireUninterruptibly(this.concurrency);
+        } finally {
+            executor.shutdown();
+            ConnectionPool.getDefault().closeIdle();
+        }
+
+        printResults(sent, System.nanoTime() - start);
+    }
+
+    private void send(final TrafficLog.Record record, final long due) {
+        final ByteBuffer raw = record.getRequest();
+        final Request request = requestFor(record, raw);
+
+        try {
+            final HttpRequestHandler handler = new HttpRequestHandler(request)
+                .formatRaw(raw)
+                .submitRequest();
+            handler.outputResponse(OutputStream.nullOutputStream());
+
+            synchronized (this.histogram) {
+                this.histogram.record(System.nanoTime() - due);
+            }
+            if (handler.getStatusCode() != record.getStatus()) {
+                this.changedStatuses.incrementAndGet();
+            }
+        } catch (HttpcException e) {
+            this.errors.incrementAndGet();
+            this.lastError = e.getMessage();
+        }
+    }
+
+    /**
+     * Where the recorded request goes, and whether its connection can be kept
+     * alive, which only the request line tells
+     */
+    private Request requestFor(final TrafficLog.Record record, final ByteBuffer raw) {
+        final Request request = new Request();
+        final String requestLine = requestLine(raw);
+        final int firstSpace = requestLine.indexOf(' ');
+        final int lastSpace = requestLine.lastIndexOf(' ');
+
+        request.setMethod(Utils.parse(Method.class, requestLine.substring(0, Math.max(0, firstSpace))));
+        request.setPath(firstSpace < lastSpace ? requestLine.substring(firstSpace + 1, lastSpace) : "/");
+        request.setKeepAlive(requestLine.endsWith(RequestTemplate.HTTP_PROTOCOL_KEEP_ALIVE));
+
+        final boolean secure = this.target != null ? this.target.isSecure() : record.isSecure();
+        request.setSecure(secure);
+        request.setHost(this.target != null ? this.target.getHost() : record.getHost());
+        request.setPort(this.target != null ? this.target.getPort() : record.getPort());
+        request.setUrl((secure ? "https://" : "http://") + request.getHost() + ":" + request.getPort() + request.getPath());
+
+        return request;
+    }
+
+    private static String requestLine(final ByteBuffer raw) {
+        int end = raw.position();
+        while (end < raw.limit() && raw.get(end) != '\r' && raw.get(end) != '\n') {
+            end++;
+        }
+
+        final byte[] line = new byte[end - raw.position()];
+        raw.get(raw.position(), line);
+        return new String(line, StandardCharsets.ISO_8859_1);
+    }
+
+    private void printResults(final long sent, final long elapsedNanos) {
+        final double seconds = elapsedNanos / 1e9;
+
+        System.out.println(String.format("Replayed %d requests from %s in %.2fs (%d errors, %d with another status than recorded)",
+            sent, this.file, seconds, this.errors.get(), this.changedStatuses.get()));
+        System.out.println(String.format("  Throughput:  %.2f requests/sec", this.histogram.getTotalCount() / seconds));
+
+        if (this.histogram.getTotalCount() > 0) {
+            System.out.println(String.format("  Latency:     mean %.3fms", this.histogram.getMean() / 1e6));
+            for (double percentile : PERCENTILES) {
+                System.out.println(String.format("    p%-8.0f %.3fms", percentile, this.histogram.getValueAtPercentile(percentile) / 1e6));
+            }
+            System.out.println(String.format("    %-9s %.3fms", "max", this.histogram.getMax() / 1e6));
+        }
+
+        if (this.lastError != null) {
+            System.out.println("  Last error:  " + this.lastError);
+        }
+    }
+}
@@ -1,29 +1,128 @@
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.HashMap;
 
 import constants.Method;
 
 public class Request {
+    public static final int DEFAULT_PORT = 80;
+    public static final int DEFAULT_TLS_PORT = 443;
+
     private Method method = null;
     private boolean verbose = false;
+    private boolean keepAlive = false;
+    private boolean nonBlocking = false;
+    private boolean compressed = false;
+    private boolean compressBody = false;
 
     private String url = null;
     private String path = null;
     private String host = null;
+    private int port = DEFAULT_PORT;
+    private boolean secure = false;
 
-    private ArrayList<String> headers = new ArrayList<>();
+    private Headers headers = new Headers();
+    private HashMap<String, InetAddress> resolves = new HashMap<>();
     private String body = null;
+    private Path bodyFile = null;
+    private Path compressedBodyFile = null;
     private String outputFile = null;
+    private String cacheDirectory = null;
+    private int parallelism = 1;
+    private String writeOut = null;
+    private boolean timingsJson = false;
+    private String recordFile = null;
+
+    // Encoded form of the invariant parts of this request, rebuilt whenever they change
+    private RequestTemplate template = null;
 
     public Request() {
     }
 
+    /**
+     * Request for a URL, eg. 'new Request(Method.GET, "http://localhost:8080/get?course=networking")'
+     *
+     * @param method
+     * @param url
+     * @throws HttpcException If the URL can't be parsed
+     */
+    public Request(final Method method, final String url) {
+        this.method = method;
+        parseUrl(url);
+    }
+
+    /**
+     * Copy of another request, with its own list of headers so either one can be
+     * changed without affecting the other
+     *
+     * @param other
+     */
+    public Request(final Request other) {
+        this.method = other.method;
+        this.verbose = other.verbose;
+        this.keepAlive = other.keepAlive;
+        this.nonBlocking = other.nonBlocking;
+        this.compressed = other.compressed;
+        this.compressBody = other.compressBody;
+        this.url = other.url;
+        this.path = other.path;
+        this.host = other.host;
+        this.port = other.port;
+        this.secure = other.secure;
+        this.headers = new Headers(other.headers);
+        this.resolves = new HashMap<>(other.resolves);
+        this.body = other.body;
+        this.bodyFile = other.bodyFile;
+        this.compressedBodyFile = other.compressedBodyFile;
+        this.outputFile = other.outputFile;
+        this.cacheDirectory = other.cacheDirectory;
+        this.parallelism = other.parallelism;
+        this.writeOut = other.writeOut;
+        this.timingsJson = other.timingsJson;
+        this.recordFile = other.recordFile;
+    }
+
     public String getHost() {
         return this.host;
     }
 
     public void setHost(String host) {
         this.host = host;
+        this.template = null;
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+        this.template = null;
+    }
+
+    /**
+     * Whether the request goes over TLS, ie. its URL is https
+     * @return
+     */
+    public boolean isSecure() {
+        return this.secure;
+    }
+
+    public void setSecure(boolean secure) {
+        this.secure = secure;
+        this.template = null;
+    }
+
+    /**
+     * Port the scheme implies when the URL doesn't name one
+     * @return
+     */
+    public int getDefaultPort() {
+        return this.secure ? DEFAULT_TLS_PORT : DEFAULT_PORT;
     }
 
     public String getPath() {
@@ -34,8 +133,40 @@ public class Request {
         this.path = path;
     }
 
-    public void insertHeader(final String header) {
-        this.headers.add(header);
+    /**
+     * Add a header, after any others of the same name
+     *
+     * @param name
+     * @param value
+     */
+    public void addHeader(final String name, final String value) {
+        this.headers.add(name, value);
+        this.template = null;
+    }
+
+    /**
+     * Replace any headers of the same name with this one
+     *
+     * @param name
+     * @param value
+     */
+    public void setHeader(final String name, final String value) {
+        this.headers.set(name, value);
+        this.template = null;
+    }
+
+    /**
+     * Pin a host and port to an address for this request only, bypassing DNS
+     */
+    public void insertResolve(final String host, final int port, final InetAddress address) {
+        this.resolves.put(host.toLowerCase() + ":" + port, address);
+    }
+
+    /**
+     * Address pinned for the host and port, or null if it should be resolved normally
+     */
+    public InetAddress getResolve(final String host, final int port) {
+        return this.resolves.get(host.toLowerCase() + ":" + port);
     }
 
     public Method getMethod() {
@@ -44,6 +175,7 @@ public class Request {
 
     public void setMethod(Method method) {
         this.method = method;
+        this.template = null;
     }
 
     public boolean isVerbose() {
@@ -58,6 +190,51 @@ public class Request {
         this.verbose = verbose;
     }
 
+    public boolean isKeepAlive() {
+        return this.keepAlive;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        this.template = null;
+    }
+
+    /**
+     * Whether the request goes through the non-blocking engine rather than a
+     * blocking socket
+     */
+    public boolean isNonBlocking() {
+        return this.nonBlocking;
+    }
+
+    public void setNonBlocking(boolean nonBlocking) {
+        this.nonBlocking = nonBlocking;
+    }
+
+    /**
+     * Whether the request asks for a compressed response, and decodes it
+     */
+    public boolean isCompressed() {
+        return this.compressed;
+    }
+
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+        this.template = null;
+    }
+
+    /**
+     * Whether the body is sent gzipped, with a Content-Encoding header
+     */
+    public boolean isCompressBody() {
+        return this.compressBody;
+    }
+
+    public void setCompressBody(boolean compressBody) {
+        this.compressBody = compressBody;
+        this.template = null;
+    }
+
     public String getUrl() {
         return this.url;
     }
@@ -66,12 +243,64 @@ public class Request {
         this.url = url;
     }
 
-    public ArrayList<String> getHeaders() {
+    /**
+     * Set the URL along with the host, port and path (with its query) it's made of
+     *
+     * @param url
+     * @throws HttpcException If the URL can't be parsed
+     */
+    public void parseUrl(final String url) {
+        final URL parsed;
+        try {
+            // Basic URL validation, this will throw on certain malformed URLs
+            parsed = new URL(url);
+        } catch (MalformedURLException e) {
+            throw new HttpcException("Error parsing URL: " + url, e);
+        }
+
+        final String scheme = parsed.getProtocol();
+        if (!scheme.equals("http") && !scheme.equals("https")) {
+            throw new HttpcException("Unsupported protocol: " + scheme);
+        }
+
+        final String query = parsed.getQuery() != null ? "?" + parsed.getQuery() : "";
+        final String path = parsed.getPath().isEmpty() ? "/" : parsed.getPath();
+
+        setPath(path + query);
+        setHost(parsed.getHost());
+        setSecure(scheme.equals("https"));
+        setPort(parsed.getPort() != -1 ? parsed.getPort() : getDefaultPort());
+        setUrl(url);
+    }
+
+    /**
+     * Headers of the request. Change them through addHeader and setHeader, or
+     * setHeaders, so the template is encoded again.
+     * @return
+     */
+    public Headers getHeaders() {
         return this.headers;
     }
 
-    public void setHeaders(ArrayList<String> headers) {
+    public void setHeaders(Headers headers) {
         this.headers = headers;
+        this.template = null;
+    }
+
+    /**
+     * Template for sending this request, encoded on first use and reused until the
+     * method, host, protocol or headers are changed through this class's setters
+     * @return
+     */
+    public RequestTemplate getTemplate() {
+        RequestTemplate current = this.template;
+
+        if (current == null) {
+            current = RequestTemplate.of(this);
+            this.template = current;
+        }
+
+        return current;
     }
 
     public String getBody() {
@@ -82,6 +311,32 @@ public class Request {
         this.body = body;
     }
 
+    /**
+     * File streamed as the body when sending the request, instead of an inline body
+     */
+    public Path getBodyFile() {
+        return this.bodyFile;
+    }
+
+    public void setBodyFile(Path bodyFile) {
+        this.bodyFile = bodyFile;
+        this.compressedBodyFile = null;
+    }
+
+    /**
+     * The body file gzipped into a temporary file, compressed on first use only
+     * however many times the request is sent
+     * @return
+     * @throws IOException
+     */
+    public Path getCompressedBodyFile() throws IOException {
+        if (this.compressedBodyFile == null) {
+            this.compressedBodyFile = Utils.gzipToTempFile(this.bodyFile);
+        }
+
+        return this.compressedBodyFile;
+    }
+
     public String getOutputFile() {
         return this.outputFile;
     }
@@ -90,11 +345,68 @@ public class Request {
         this.outputFile = outputFile;
     }
 
+    /**
+     * Directory of the response cache to use, or null to always go to the network
+     */
+    public String getCacheDirectory() {
+        return this.cacheDirectory;
+    }
+
+    public void setCacheDirectory(String cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * Number of ranged requests a download into the output file is split across,
+     * 1 for a plain single request
+     */
+    public int getParallelism() {
+        return this.parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * curl style '-w' format printed with the request's timings once it completes, or null
+     */
+    public String getWriteOut() {
+        return this.writeOut;
+    }
+
+    public void setWriteOut(String writeOut) {
+        this.writeOut = writeOut;
+    }
+
+    /**
+     * Whether the request's timings are printed to stderr as a line of JSON once it completes
+     */
+    public boolean isTimingsJson() {
+        return this.timingsJson;
+    }
+
+    public void setTimingsJson(boolean timingsJson) {
+        this.timingsJson = timingsJson;
+    }
+
+    /**
+     * TrafficLog the request and its response are appended to once it completes, or null
+     */
+    public String getRecordFile() {
+        return this.recordFile;
+    }
+
+    public void setRecordFile(String recordFile) {
+        this.recordFile = recordFile;
+    }
+
     @Override
     public String toString() {
-        return "{" + " method='" + getMethod() + "'" + ", verbose='" + isVerbose() + "'" + ", url='" + getUrl() + "'"
+        return "{" + " method='" + getMethod() + "'" + ", verbose='" + isVerbose() + "'"
+                + ", keepAlive='" + isKeepAlive() + "'" + ", url='" + getUrl() + "'"
                 + ", path='" + getPath() + "'" + ", host='" + getHost() + "'" + ", headers='" + getHeaders() + "'"
-                + ", body='" + getBody() + "'" + ", outputFile='" + getOutputFile() + "'" + "}";
+                + ", body='" + getBody() + "'" + ", bodyFile='" + getBodyFile() + "'" + ", outputFile='" + getOutputFile() + "'" + "}";
     }
 
 }
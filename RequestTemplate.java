@@ -0,0 +1,194 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import constants.Method;
+
+/**
+ * The parts of a request that stay the same from one send to the next (method,
+ * protocol and headers), encoded to bytes once. The path, Content-Length, any
+ * per-send headers and the body are spliced in when the request is written, so
+ * sending the same shape of request over and over doesn't re-format or
+ * re-encode anything.
+ *
+ * Templates are immutable and can be shared between threads.
+ */
+public class RequestTemplate {
+    public static final String HTTP_PROTOCOL = "HTTP/1.0";
+    public static final String HTTP_PROTOCOL_KEEP_ALIVE = "HTTP/1.1";
+
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] CONTENT_LENGTH = (Headers.CONTENT_LENGTH + ":").getBytes(StandardCharsets.ISO_8859_1);
+
+    private final Method method;
+    private final String host;
+    private final boolean keepAlive;
+
+    // 'METHOD ' before the path
+    private final byte[] requestLinePrefix;
+    // ' HTTPVER\r\n' after the path, followed by every header we know ahead of time
+    private final byte[] requestLineSuffixAndHeaders;
+    private final boolean hasContentLength;
+
+    private RequestTemplate(final Request request) {
+        this.method = request.getMethod();
+        // The port is only part of the Host header when it isn't the default
+        this.host = request.getPort() != request.getDefaultPort()
+            ? request.getHost() + ":" + request.getPort()
+            : request.getHost();
+        this.keepAlive = request.isKeepAlive();
+
+        // Defaults go after the user's own headers, unless the user already set them
+        final Headers headers = new Headers(request.getHeaders());
+
+        // The user's length is the uncompressed body's, the one sent is computed from the gzipped body instead
+        if (request.isCompressBody() && this.method == Method.POST) {
+            headers.remove(Headers.CONTENT_LENGTH);
+        }
+        final boolean contentLength = headers.contains(Headers.CONTENT_LENGTH);
+
+        // HTTP/1.1 requires the Host header
+        if (this.keepAlive && !headers.contains(Headers.HOST)) {
+            headers.add(Headers.HOST, this.host);
+        }
+
+        // Unless the user asked for specific encodings, offer the ones ContentDecoder handles
+        if (request.isCompressed() && !headers.contains(Headers.ACCEPT_ENCODING)) {
+            headers.add(Headers.ACCEPT_ENCODING, "gzip, deflate");
+        }
+
+        if (request.isCompressBody() && this.method == Method.POST) {
+            headers.add(Headers.CONTENT_ENCODING, "gzip");
+        }
+
+        final byte[] requestLineSuffix = (" " + (this.keepAlive ? HTTP_PROTOCOL_KEEP_ALIVE : HTTP_PROTOCOL) + "\r\n")
+            .getBytes(StandardCharsets.ISO_8859_1);
+        final byte[] encodedHeaders = headers.encode();
+
+        this.requestLinePrefix = (this.method.toString() + " ").getBytes(StandardCharsets.UTF_8);
+        this.requestLineSuffixAndHeaders = Arrays.copyOf(requestLineSuffix, requestLineSuffix.length + encodedHeaders.length);
+        System.arraycopy(encodedHeaders, 0, this.requestLineSuffixAndHeaders, requestLineSuffix.length, encodedHeaders.length);
+        this.hasContentLength = contentLength;
+    }
+
+    /**
+     * Encode the invariant parts of the request
+     *
+     * @param request
+     * @return
+     */
+    public static RequestTemplate of(final Request request) {
+        return new RequestTemplate(request);
+    }
+
+    /**
+     * Whether the request has a body to send. Only POST requests carry one.
+     * @return
+     */
+    public boolean hasBody() {
+        return this.method == Method.POST;
+    }
+
+    /**
+     * Write the full request head, and the inline body if there is one
+     *
+     * @param out        Destination, ideally buffered since the request is written in pieces
+     * @param path       Path and query string of the request line
+     * @param extra      Encoded header lines that vary per send (eg. conditional headers), or null
+     * @param body       Inline body, or null if there's none or it's sent separately (eg. a file)
+     * @param bodyLength Length of the body in bytes, or -1 if there is no body
+     * @return Number of bytes written
+     * @throws IOException
+     */
+    public long writeTo(final OutputStream out, final String path, final byte[] extra, final byte[] body,
+            final long bodyLength) throws IOException {
+        long written = 0;
+
+        // METHOD URL HTTPVER -> 'GET /get?assignment=1 HTTP/1.0'
+        out.write(this.requestLinePrefix);
+        written += this.requestLinePrefix.length + writePath(out, path);
+        out.write(this.requestLineSuffixAndHeaders);
+        written += this.requestLineSuffixAndHeaders.length;
+
+        if (extra != null) {
+            out.write(extra);
+            written += extra.length;
+        }
+
+        if (!this.hasContentLength && bodyLength >= 0) {
+            out.write(CONTENT_LENGTH);
+            written += CONTENT_LENGTH.length + writeDigits(out, bodyLength);
+            out.write(CRLF);
+            written += CRLF.length;
+        }
+
+        // Line seperator between headers and body (Or signalling end of file if a get request)
+        out.write(CRLF);
+        written += CRLF.length;
+
+        if (body != null) {
+            out.write(body);
+            written += body.length;
+        }
+
+        return written;
+    }
+
+    public Method getMethod() {
+        return this.method;
+    }
+
+    /**
+     * Host as sent in the Host header, with the port unless it's the default
+     * @return
+     */
+    public String getHost() {
+        return this.host;
+    }
+
+    public boolean isKeepAlive() {
+        return this.keepAlive;
+    }
+
+    /**
+     * Paths are ASCII once URL encoded, so they're written a byte at a time without
+     * encoding to an intermediate array. Anything else falls back to UTF-8.
+     */
+    private static int writePath(final OutputStream out, final String path) throws IOException {
+        final int length = path.length();
+
+        for (int i = 0; i < length; i++) {
+            if (path.charAt(i) >= 0x80) {
+                final byte[] encoded = path.getBytes(StandardCharsets.UTF_8);
+                out.write(encoded);
+                return encoded.length;
+            }
+        }
+
+        for (int i = 0; i < length; i++) {
+            out.write(path.charAt(i));
+        }
+        return length;
+    }
+
+    private static int writeDigits(final OutputStream out, final long value) throws IOException {
+        long divisor = 1;
+        int digits = 0;
+        while (divisor <= value / 10) {
+            divisor *= 10;
+        }
+
+        for (; divisor > 0; divisor /= 10) {
+            out.write('0' + (int) (value / divisor % 10));
+            digits++;
+        }
+        return digits;
+    }
+
+    @Override
+    public String toString() {
+        return new String(this.requestLinePrefix, StandardCharsets.UTF_8) + "<path>"
+            + new String(this.requestLineSuffixAndHeaders, StandardCharsets.UTF_8);
+    }
+}
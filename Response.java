@@ -0,0 +1,77 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Response to a request sent through HttpcClient: its status line and headers,
+ * available straight away, and its body as a stream
+ */
+public class Response implements Closeable {
+    private final HttpRequestHandler handler;
+    private final int statusCode;
+    private final String head;
+    private final InputStream body;
+
+    Response(final HttpRequestHandler handler, final InputStream body) {
+        this.handler = handler;
+        this.statusCode = handler.getStatusCode();
+        this.head = handler.getResponseHead();
+        this.body = body;
+    }
+
+    public int getStatusCode() {
+        return this.statusCode;
+    }
+
+    /**
+     * Status line and headers as text, one per line
+     * @return
+     */
+    public String getHead() {
+        return this.head;
+    }
+
+    /**
+     * Value of a response header
+     *
+     * @param name Case insensitive
+     * @return The value, or null if the response doesn't have it
+     */
+    public String getHeader(final String name) {
+        return this.handler.getResponseHeader(name);
+    }
+
+    /**
+     * Body of the response, decoded if the request was sent with compression.
+     * It must be read to the end or closed so its connection can be reused.
+     *
+     * @return
+     */
+    public InputStream getBody() {
+        return this.body;
+    }
+
+    /**
+     * Timings of the request, complete once the body has been read to the end
+     * @return
+     */
+    public Timings getTimings() {
+        return this.handler.getTimings();
+    }
+
+    /**
+     * Give up on whatever is left of the body
+     */
+    @Override
+    public void close() throws IOException {
+        this.body.close();
+    }
+
+    @Override
+    public String toString() {
+        return "Response{" +
+            " statusCode='" + this.statusCode + "'" +
+            ", head='" + this.head + "'" +
+            "}";
+    }
+}
@@ -0,0 +1,553 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * On disk cache of GET responses, keyed by method, host and path.
+ *
+ * Responses are stored if Cache-Control/Expires make them fresh for a while or
+ * they carry a validator (ETag or Last-Modified). Fresh entries are served
+ * without touching the network, stale ones are revalidated with If-None-Match /
+ * If-Modified-Since so a 304 is served from disk. Every entry is a pair of
+ * files, its metadata and its body, and the least recently used entries are
+ * deleted once the directory grows past its size limit. File modification times
+ * track use, so the LRU order carries over between invocations.
+ *
+ * Each stored body starts with a stamp line that its metadata records as well.
+ * Replacing an entry swaps the two files one after the other, so a reader (or a
+ * crash) in between sees stamps that disagree and treats the entry as missing
+ * rather than pairing one response's head with another's body.
+ *
+ * The size limit defaults to the 'httpc.cache.maxSize' system property, in bytes.
+ */
+public class ResponseCache {
+    private static final long DEFAULT_MAX_BYTES = Long.getLong("httpc.cache.maxSize", 256L * 1024 * 1024);
+    private static final String META_SUFFIX = ".meta";
+    private static final String BODY_SUFFIX = ".body";
+    // 16 hex digits and a newline
+    private static final int STAMP_LENGTH = 17;
+    // Headers of a 304 that replace the stored ones, they carry the response's new freshness and validators
+    private static final String[] REVALIDATED_HEADERS = {
+        Headers.CACHE_CONTROL, Headers.DATE, Headers.ETAG, Headers.EXPIRES, Headers.LAST_MODIFIED,
+    };
+
+    private final Path directory;
+    private final long maxBytes;
+
+    public ResponseCache(final Path directory) {
+        this(directory, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param directory Where entries are stored, created if needed
+     * @param maxBytes  Total size of the entries above which the least recently used are evicted
+     */
+    public ResponseCache(final Path directory, final long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Look up the stored response for the request, fresh or not
+     *
+     * @param method
+     * @param host
+     * @param path
+     * @return The entry, or null if there's none
+     */
+    public Entry lookup(final String method, final String host, final String path) {
+        final String key = key(method, host, path);
+        final Entry entry = new Entry(key, directory.resolve(hash(key)));
+
+        if (!Files.isRegularFile(entry.metaFile) || !Files.isRegularFile(entry.bodyFile)) {
+            return null;
+        }
+
+        try (
+            Reader reader = Files.newBufferedReader(entry.metaFile, StandardCharsets.UTF_8);
+        ) {
+            Properties properties = new Properties();
+            properties.load(reader);
+
+            // Two keys could share a hash, only the one that was stored counts
+            if (!key.equals(properties.getProperty("key"))) {
+                return null;
+            }
+
+            entry.head = properties.getProperty("head", "");
+            entry.stamp = properties.getProperty("stamp", "");
+            entry.etag = properties.getProperty("etag");
+            entry.lastModified = properties.getProperty("lastModified");
+            entry.expiresAt = Long.parseLong(properties.getProperty("expiresAt", "0"));
+
+            // Half replaced, the body belongs to another response than the head
+            try (
+                InputStream body = Files.newInputStream(entry.bodyFile);
+            ) {
+                if (!entry.stamp.equals(readStamp(body))) {
+                    return null;
+                }
+            }
+
+            touch(entry);
+            return entry;
+        } catch (IOException | NumberFormatException e) {
+            // A damaged entry is the same as a missing one
+            return null;
+        }
+    }
+
+    /**
+     * Start storing a response, if it may be cached
+     *
+     * @param method
+     * @param host
+     * @param path
+     * @param parser Parser holding the response head
+     * @return A pending entry to stream the body into, or null if the response isn't cacheable
+     */
+    public Pending begin(final String method, final String host, final String path, final HttpResponseParser parser) {
+        if (!method.equals("GET") || parser.getStatusCode() != 200) {
+            return null;
+        }
+
+        final CacheControl control = CacheControl.of(parser.getHeaders());
+        final String etag = parser.getHeader("ETag");
+        final String lastModified = parser.getHeader("Last-Modified");
+
+        // Without freshness or a validator the entry could never be used
+        if (control.noStore || (control.expiresAt <= System.currentTimeMillis() && etag == null && lastModified == null)) {
+            return null;
+        }
+
+        final String key = key(method, host, path);
+        final Entry entry = new Entry(key, directory.resolve(hash(key)));
+        entry.head = parser.getHead();
+        entry.etag = etag;
+        entry.lastModified = lastModified;
+        entry.expiresAt = control.expiresAt;
+        entry.stamp = String.format("%016x", ThreadLocalRandom.current().nextLong());
+
+        try {
+            Files.createDirectories(directory);
+            final Path temp = Files.createTempFile(directory, "pending", ".tmp");
+            final OutputStream output = new BufferedOutputStream(Files.newOutputStream(temp));
+            output.write((entry.stamp + "\n").getBytes(StandardCharsets.ISO_8859_1));
+            return new Pending(entry, temp, output);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Make a fully written entry visible, then evict old entries if over the size limit.
+     * Until the metadata is replaced too, lookups see mismatched stamps and miss.
+     * @param pending
+     */
+    public void commit(final Pending pending) {
+        try {
+            pending.output.close();
+            Files.move(pending.tempFile, pending.entry.bodyFile,
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writeMeta(pending.entry);
+            evict();
+        } catch (IOException e) {
+            abort(pending);
+        }
+    }
+
+    /**
+     * Throw away an entry whose response wasn't fully received
+     * @param pending
+     */
+    public void abort(final Pending pending) {
+        try {
+            pending.output.close();
+        } catch (IOException e) {
+            // Deleted below either way
+        }
+
+        try {
+            Files.deleteIfExists(pending.tempFile);
+        } catch (IOException e) {
+            // Left for the next eviction
+        }
+    }
+
+    /**
+     * Record a 304 for a stale entry: its freshness and validators headers are
+     * replaced by the ones the 304 has, and its freshness is recomputed from the
+     * merged head, so a 304 with only an ETag keeps the stored max-age
+     *
+     * @param entry
+     * @param parser Parser holding the 304 response head
+     */
+    public void revalidated(final Entry entry, final HttpResponseParser parser) {
+        if (CacheControl.of(parser.getHeaders()).noStore) {
+            // Served this once, but it may not be kept any longer
+            try {
+                Files.deleteIfExists(entry.metaFile);
+                Files.deleteIfExists(entry.bodyFile);
+            } catch (IOException e) {
+                // Left for the next eviction
+            }
+            return;
+        }
+
+        entry.head = mergeHead(entry.head, parser.getHeaders());
+        entry.headers = Headers.parse(entry.head);
+        entry.expiresAt = CacheControl.of(entry.headers).expiresAt;
+
+        if (parser.getHeader(Headers.ETAG) != null) {
+            entry.etag = parser.getHeader(Headers.ETAG);
+        }
+        if (parser.getHeader(Headers.LAST_MODIFIED) != null) {
+            entry.lastModified = parser.getHeader(Headers.LAST_MODIFIED);
+        }
+
+        try {
+            writeMeta(entry);
+        } catch (IOException e) {
+            // The entry still works, it will just be revalidated again next time
+        }
+    }
+
+    /**
+     * The stored head with every REVALIDATED_HEADERS header the 304 has replaced by the 304's values
+     */
+    private static String mergeHead(final String head, final Headers updated) {
+        final StringBuilder merged = new StringBuilder(head.length());
+        int start = 0;
+
+        while (start < head.length()) {
+            int end = head.indexOf('\n', start);
+            if (end < 0) {
+                end = head.length();
+            }
+
+            // The status line stays, like any header the 304 doesn't have
+            final int colon = head.indexOf(':', start);
+            final boolean replaced = start > 0 && colon > start && colon < end
+                && isRevalidated(head.substring(start, colon).trim()) && updated.contains(head.substring(start, colon).trim());
+            if (!replaced) {
+                merged.append(head, start, end).append('\n');
+            }
+            start = end + 1;
+        }
+
+        for (String name : REVALIDATED_HEADERS) {
+            for (String value : updated.getAll(name)) {
+                merged.append(name).append(": ").append(value).append('\n');
+            }
+        }
+
+        return merged.toString();
+    }
+
+    private static boolean isRevalidated(final String name) {
+        for (String revalidated : REVALIDATED_HEADERS) {
+            if (revalidated.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Conditional request headers to revalidate a stale entry with
+     *
+     * @param entry
+     * @return Encoded header lines
+     */
+    public static byte[] conditionalHeaders(final Entry entry) {
+        StringBuilder headers = new StringBuilder();
+
+        if (entry.etag != null) {
+            headers.append("If-None-Match:").append(entry.etag).append("\r\n");
+        }
+        if (entry.lastModified != null) {
+            headers.append("If-Modified-Since:").append(entry.lastModified).append("\r\n");
+        }
+
+        return headers.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private void writeMeta(final Entry entry) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("key", entry.key);
+        properties.setProperty("head", entry.head);
+        properties.setProperty("stamp", entry.stamp);
+        properties.setProperty("expiresAt", Long.toString(entry.expiresAt));
+        if (entry.etag != null) {
+            properties.setProperty("etag", entry.etag);
+        }
+        if (entry.lastModified != null) {
+            properties.setProperty("lastModified", entry.lastModified);
+        }
+
+        final Path temp = Files.createTempFile(directory, "pending", ".tmp");
+        try (
+            Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8);
+        ) {
+            properties.store(writer, null);
+        }
+        Files.move(temp, entry.metaFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Delete least recently used entries until the cache fits its size limit
+     */
+    private synchronized void evict() throws IOException {
+        List<Path> bodies = new ArrayList<>();
+        long total = 0;
+
+        try (
+            DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + BODY_SUFFIX);
+        ) {
+            for (Path body : files) {
+                bodies.add(body);
+                total += Files.size(body);
+            }
+        }
+
+        if (total <= maxBytes) {
+            return;
+        }
+
+        bodies.sort((a, b) -> lastUsed(a).compareTo(lastUsed(b)));
+
+        for (Path body : bodies) {
+            if (total <= maxBytes) {
+                break;
+            }
+
+            final String name = body.getFileName().toString();
+            final Path meta = body.resolveSibling(name.substring(0, name.length() - BODY_SUFFIX.length()) + META_SUFFIX);
+
+            total -= Files.size(body);
+            Files.deleteIfExists(meta);
+            Files.deleteIfExists(body);
+        }
+    }
+
+    /**
+     * Read the stamp line a body starts with
+     *
+     * @param body Positioned at its start, left positioned after the stamp
+     * @return The stamp, or null if the body is too short to have one
+     */
+    private static String readStamp(final InputStream body) throws IOException {
+        final byte[] stamp = body.readNBytes(STAMP_LENGTH);
+        if (stamp.length < STAMP_LENGTH) {
+            return null;
+        }
+        return new String(stamp, 0, STAMP_LENGTH - 1, StandardCharsets.ISO_8859_1);
+    }
+
+    private static void touch(final Entry entry) {
+        try {
+            Files.setLastModifiedTime(entry.bodyFile, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // Only affects eviction order
+        }
+    }
+
+    private static FileTime lastUsed(final Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static String key(final String method, final String host, final String path) {
+        return method + " " + host.toLowerCase() + path;
+    }
+
+    private static String hash(final String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+
+            for (int i = 0; i < 16; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A stored response
+     */
+    public static class Entry {
+        private final String key;
+        private final Path metaFile;
+        private final Path bodyFile;
+        private String head;
+        // Shared with the body file, to tell the two belong together
+        private String stamp;
+        // Parsed from the head on the first lookup
+        private Headers headers;
+        private String etag;
+        private String lastModified;
+        private long expiresAt;
+
+        private Entry(final String key, final Path base) {
+            this.key = key;
+            this.metaFile = base.resolveSibling(base.getFileName() + META_SUFFIX);
+            this.bodyFile = base.resolveSibling(base.getFileName() + BODY_SUFFIX);
+        }
+
+        public boolean isFresh() {
+            return this.expiresAt > System.currentTimeMillis();
+        }
+
+        /**
+         * Whether the entry can be revalidated once it's stale
+         * @return
+         */
+        public boolean hasValidator() {
+            return this.etag != null || this.lastModified != null;
+        }
+
+        /**
+         * Status line and headers of the stored response
+         * @return
+         */
+        public String getHead() {
+            return this.head;
+        }
+
+        /**
+         * Value of a header of the stored response
+         *
+         * @param name Case insensitive
+         * @return The value, or null if the header isn't there
+         */
+        public String getHeader(final String name) {
+            if (this.headers == null) {
+                this.headers = Headers.parse(this.head);
+            }
+            return this.headers.get(name);
+        }
+
+        /**
+         * @return The stored body, without its stamp
+         * @throws IOException Also if the body was replaced since the lookup
+         */
+        public InputStream openBody() throws IOException {
+            final InputStream body = Files.newInputStream(this.bodyFile);
+            if (!this.stamp.equals(readStamp(body))) {
+                body.close();
+                throw new IOException("Cached body changed: " + this.bodyFile);
+            }
+            return body;
+        }
+    }
+
+    /**
+     * A response being written to the cache as it's received
+     */
+    public static class Pending {
+        private final Entry entry;
+        private final Path tempFile;
+        private final OutputStream output;
+
+        private Pending(final Entry entry, final Path tempFile, final OutputStream output) {
+            this.entry = entry;
+            this.tempFile = tempFile;
+            this.output = output;
+        }
+
+        public OutputStream getOutputStream() {
+            return this.output;
+        }
+    }
+
+    /**
+     * Freshness rules from the Cache-Control, Expires and Date response headers
+     */
+    private static class CacheControl {
+        private boolean noStore = false;
+        private long expiresAt = 0;
+
+        private static CacheControl of(final Headers headers) {
+            CacheControl control = new CacheControl();
+            final long now = System.currentTimeMillis();
+            final String cacheControl = headers.get(Headers.CACHE_CONTROL);
+            boolean hasMaxAge = false;
+            boolean noCache = false;
+
+            if (cacheControl != null) {
+                for (String directive : cacheControl.toLowerCase().split(",")) {
+                    directive = directive.trim();
+
+                    if (directive.equals("no-store")) {
+                        control.noStore = true;
+                    } else if (directive.equals("no-cache")) {
+                        noCache = true;
+                    } else if (directive.startsWith("max-age=")) {
+                        try {
+                            control.expiresAt = now + Long.parseLong(directive.substring(8).replace("\"", "")) * 1000;
+                            hasMaxAge = true;
+                        } catch (NumberFormatException e) {
+                            // Treated as already stale
+                        }
+                    }
+                }
+            }
+
+            // May be stored (unless no-store says otherwise), but must be revalidated every time
+            if (noCache) {
+                control.expiresAt = 0;
+                return control;
+            }
+
+            // max-age takes precedence over Expires
+            if (!hasMaxAge && headers.get(Headers.EXPIRES) != null) {
+                final long expires = parseDate(headers.get(Headers.EXPIRES));
+                final long date = parseDate(headers.get(Headers.DATE));
+
+                // Measure against the server's clock when we can, in case ours disagrees
+                if (expires > 0) {
+                    control.expiresAt = date > 0 ? now + (expires - date) : expires;
+                }
+            }
+
+            return control;
+        }
+
+        private static long parseDate(final String value) {
+            if (value == null) {
+                return 0;
+            }
+
+            try {
+                return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.spi.ToolProvider;
+
+/**
+ * Measures how long a one-shot 'java Httpc get' takes to get its request out:
+ * from launching the JVM to the request line reaching a LoopbackServer, and
+ * until the process has exited. A plain launch is compared with the startup
+ * profile, which is launched as
+ *
+ *   java -XX:SharedArchiveFile=httpc.jsa -XX:TieredStopAtLevel=1 -XX:+UseSerialGC -cp httpc.jar Httpc ...
+ *
+ * Class data sharing only archives classes from jars, so the classes are
+ * packaged into httpc.jar next to the archive first. The (AppCDS) archive is
+ * then generated by a training run that executes typical commands with
+ * '-XX:ArchiveClassesAtExit', so their classes and lambda forms are mapped from
+ * the archive instead of loaded and verified. Scripts can keep using both files
+ * until the classes are recompiled.
+ *
+ * Usage: 'java StartupBenchmark [archive] [runs]'
+ */
+public class StartupBenchmark {
+    private static final String DEFAULT_ARCHIVE = "httpc.jsa";
+    private static final int DEFAULT_RUNS = 10;
+    private static final String TRAIN = "--train";
+    private static final String JAR = "httpc.jar";
+
+    // Quick JIT only, and a GC without worker threads to start
+    private static final List<String> PROFILE_FLAGS = Arrays.asList("-XX:TieredStopAtLevel=1", "-XX:+UseSerialGC");
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 1 && args[0].equals(TRAIN)) {
+            train(args[1]);
+            return;
+        }
+
+        final Path archive = Paths.get(args.length > 0 ? args[0] : DEFAULT_ARCHIVE).toAbsolutePath();
+        final int runs = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_RUNS;
+        final Path jar = archive.resolveSibling(JAR);
+        packageClasses(jar);
+
+        try (
+            LoopbackServer server = new LoopbackServer(0, true);
+        ) {
+            final String url = server.getBaseUrl() + "/bytes/512";
+
+            // ============================== TRAINING ============================== //
+
+            Files.deleteIfExists(archive);
+            final List<String> training = java(Collections.singletonList("-XX:ArchiveClassesAtExit=" + archive), jar);
+            training.add(StartupBenchmark.class.getName());
+            training.add(TRAIN);
+            training.add(server.getBaseUrl());
+
+            if (launch(training) != 0 || !Files.isRegularFile(archive)) {
+                throw new IllegalStateException("Training run didn't produce " + archive);
+            }
+            System.out.println(String.format("Archive: %s (%d KB)", archive, Files.size(archive) / 1024));
+
+            // ============================== MEASUREMENT ============================== //
+
+            final List<String> profile = new ArrayList<>(PROFILE_FLAGS);
+            profile.add("-XX:SharedArchiveFile=" + archive);
+
+            final String[] names = { "default", "profile (no archive)", "profile" };
+            final List<List<String>> commands = Arrays.asList(
+                httpc(Collections.emptyList(), jar, url),
+                httpc(PROFILE_FLAGS, jar, url),
+                httpc(profile, jar, url)
+            );
+            final long[][] firstByte = new long[commands.size()][runs];
+            final long[][] exit = new long[commands.size()][runs];
+
+            // Interleaved, so a noisy moment affects every configuration alike
+            for (int run = 0; run < runs; run++) {
+                for (int i = 0; i < commands.size(); i++) {
+                    final long requests = server.getRequests();
+                    final long start = System.nanoTime();
+
+                    if (launch(commands.get(i)) != 0 || server.getRequests() == requests) {
+                        throw new IllegalStateException("Request failed: " + commands.get(i));
+                    }
+                    exit[i][run] = System.nanoTime() - start;
+                    firstByte[i][run] = server.getLastRequestNanos() - start;
+                }
+            }
+
+            System.out.println(String.format("%-22s %18s %18s", "", "first request byte", "exit"));
+            for (int i = 0; i < commands.size(); i++) {
+                System.out.println(String.format("%-22s %12.1fms p50 %12.1fms p50", names[i], median(firstByte[i]), median(exit[i])));
+            }
+        }
+    }
+
+    /**
+     * Run the commands a one-shot invocation typically runs, so the archive has
+     * the classes of every path up to the first request byte and beyond
+     */
+    private static void train(final String baseUrl) throws IOException {
+        final Path body = Files.createTempFile("httpc-train", ".txt");
+        final Path output = Files.createTempFile("httpc-train", ".txt");
+
+        try {
+            Files.write(body, "{\"Assignment\": 1}".getBytes());
+
+            final String[][] commands = {
+                { "get", baseUrl + "/bytes/512" },
+                { "get", baseUrl + "/bytes/512?chunked=1", "-v", "-h", "Accept:text/plain", "--http1.1" },
+                { "get", baseUrl + "/", "-o", output.toString(), "-w", "%{http_code} %{time_total}\\n", "--timings" },
+                { "post", baseUrl + "/echo", "-h", "Content-Type:application/json", "-d", "{\"Assignment\": 1}" },
+                { "post", baseUrl + "/echo", "-f", body.toString(), "--http1.1" },
+                { "help" },
+            };
+
+            for (String[] command : commands) {
+                Httpc.run(command);
+            }
+        } finally {
+            Files.deleteIfExists(body);
+            Files.deleteIfExists(output);
+        }
+    }
+
+    private static List<String> httpc(final List<String> flags, final Path jar, final String url) {
+        final List<String> command = java(flags, jar);
+        command.addAll(Arrays.asList("Httpc", "get", url));
+        return command;
+    }
+
+    private static List<String> java(final List<String> flags, final Path jar) {
+        final List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(flags);
+        command.add("-cp");
+        command.add(jar.toString());
+        return command;
+    }
+
+    /**
+     * Package the compiled classes on our class path into a jar
+     */
+    private static void packageClasses(final Path jar) throws IOException {
+        final Path classes = Paths.get(Httpc.class.getProtectionDomain().getCodeSource().getLocation().getPath());
+
+        if (Files.isRegularFile(classes)) {
+            // Already running from a jar
+            Files.copy(classes, jar, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+
+        Files.deleteIfExists(jar);
+        final ToolProvider tool = ToolProvider.findFirst("jar")
+            .orElseThrow(() -> new IllegalStateException("The jar tool is needed to package the classes"));
+
+        if (tool.run(System.out, System.err, "--create", "--file", jar.toString(), "-C", classes.toString(), ".") != 0) {
+            throw new IllegalStateException("Couldn't package " + classes + " into " + jar);
+        }
+    }
+
+    private static int launch(final List<String> command) throws IOException, InterruptedException {
+        return new ProcessBuilder(command)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .redirectError(ProcessBuilder.Redirect.to(new File(System.getProperty("java.io.tmpdir"), "httpc-startup.log")))
+            .start()
+            .waitFor();
+    }
+
+    private static double median(final long[] nanos) {
+        final long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2] / 1e6;
+    }
+}
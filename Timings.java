@@ -0,0 +1,252 @@
+/**
+ * Where the time of a single request went: resolving the host, connecting,
+ * the TLS handshake for https, writing the request, waiting for the first
+ * byte of the response and transferring it, plus the bytes sent and received.
+ *
+ * Phases are marked in order with System.nanoTime() as the request goes. A
+ * phase that didn't happen (eg. no connect on a reused connection, or nothing
+ * at all for a response served from the cache) takes no time.
+ */
+public class Timings {
+    private long start;
+    private long resolved;
+    private long connected;
+    private long handshaken;
+    private long sent;
+    private long firstByte;
+    private long done;
+
+    private long bytesSent = 0;
+    private long bytesReceived = 0;
+    private boolean reused = false;
+    private int connects = 0;
+    private int statusCode = 0;
+
+    /**
+     * Start timing, everything else is measured from here
+     */
+    public void start() {
+        this.start = System.nanoTime();
+        this.resolved = this.connected = this.handshaken = this.sent = this.firstByte = this.done = this.start;
+        this.statusCode = 0;
+        resetCounters();
+    }
+
+    /**
+     * Send the request again after a failed attempt, eg. on a stale pooled
+     * connection. The time the attempt took still counts, its bytes don't.
+     */
+    public void retry() {
+        resetCounters();
+    }
+
+    private void resetCounters() {
+        this.bytesSent = 0;
+        this.bytesReceived = 0;
+        this.reused = false;
+        this.connects = 0;
+    }
+
+    public void markResolved() {
+        this.resolved = System.nanoTime();
+    }
+
+    /**
+     * @param reused Whether the connection was already open, in which case connecting took no time
+     */
+    public void markConnected(final boolean reused) {
+        markConnected(reused, 0);
+    }
+
+    /**
+     * @param reused         Whether the connection was already open
+     * @param handshakeNanos How long its TLS handshake took, the tail end of connecting
+     */
+    public void markConnected(final boolean reused, final long handshakeNanos) {
+        this.handshaken = System.nanoTime();
+        this.connected = this.handshaken - handshakeNanos;
+        this.reused = reused;
+        this.connects = reused ? 0 : 1;
+    }
+
+    public void markSent() {
+        this.sent = System.nanoTime();
+    }
+
+    public void markFirstByte() {
+        this.firstByte = System.nanoTime();
+    }
+
+    /**
+     * @param statusCode Status of the response, once its body has been fully received
+     */
+    public void markDone(final int statusCode) {
+        this.done = System.nanoTime();
+        this.statusCode = statusCode;
+
+        // Phases that never happened end where the response did
+        this.resolved = Math.max(this.resolved, this.start);
+        this.connected = Math.max(this.connected, this.resolved);
+        this.handshaken = Math.max(this.handshaken, this.connected);
+        this.sent = Math.max(this.sent, this.handshaken);
+        this.firstByte = Math.max(this.firstByte, this.sent);
+    }
+
+    public void addBytesSent(final long bytes) {
+        this.bytesSent += bytes;
+    }
+
+    public void addBytesReceived(final long bytes) {
+        this.bytesReceived += bytes;
+    }
+
+    public long getResolveNanos() {
+        return this.resolved - this.start;
+    }
+
+    public long getConnectNanos() {
+        return this.connected - this.resolved;
+    }
+
+    /**
+     * Time spent on the TLS handshake, 0 for plain HTTP or a reused connection
+     * @return
+     */
+    public long getHandshakeNanos() {
+        return this.handshaken - this.connected;
+    }
+
+    public long getWriteNanos() {
+        return this.sent - this.handshaken;
+    }
+
+    /**
+     * Time from the request being sent to the first byte of the response, ie. the server's think time plus a round trip
+     * @return
+     */
+    public long getFirstByteNanos() {
+        return this.firstByte - this.sent;
+    }
+
+    public long getTransferNanos() {
+        return this.done - this.firstByte;
+    }
+
+    public long getTotalNanos() {
+        return this.done - this.start;
+    }
+
+    public long getBytesSent() {
+        return this.bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return this.bytesReceived;
+    }
+
+    public boolean isReused() {
+        return this.reused;
+    }
+
+    public int getStatusCode() {
+        return this.statusCode;
+    }
+
+    /**
+     * Fill in a curl style '-w' format. Times are in seconds from the start of
+     * the request, like curl's:
+     *
+     * %{time_namelookup}, %{time_connect}, %{time_appconnect} (0 without a
+     * handshake), %{time_sent}, %{time_starttransfer},
+     * %{time_total}, %{size_upload}, %{size_download}, %{http_code},
+     * %{url_effective} and %{num_connects}. '\n', '\t' and '\\' are unescaped.
+     *
+     * @param format
+     * @param url    URL of the request
+     * @return
+     */
+    public String format(final String format, final String url) {
+        StringBuilder out = new StringBuilder();
+        int i = 0;
+
+        while (i < format.length()) {
+            final char c = format.charAt(i);
+
+            if (c == '\\' && i + 1 < format.length()) {
+                final char next = format.charAt(i + 1);
+                out.append(next == 'n' ? '\n' : next == 't' ? '\t' : next == 'r' ? '\r' : next);
+                i += 2;
+                continue;
+            }
+
+            final int end = c == '%' && format.startsWith("%{", i) ? format.indexOf('}', i) : -1;
+            if (end < 0) {
+                out.append(c);
+                i++;
+                continue;
+            }
+
+            final String name = format.substring(i + 2, end);
+            final String value = variable(name, url);
+            out.append(value != null ? value : format.substring(i, end + 1));
+            i = end + 1;
+        }
+
+        return out.toString();
+    }
+
+    private String variable(final String name, final String url) {
+        switch (name) {
+        case "time_namelookup":
+            return seconds(this.resolved);
+        case "time_connect":
+            return seconds(this.connected);
+        case "time_appconnect":
+            return seconds(this.handshaken > this.connected ? this.handshaken : this.start);
+        case "time_sent":
+            return seconds(this.sent);
+        case "time_starttransfer":
+            return seconds(this.firstByte);
+        case "time_total":
+            return seconds(this.done);
+        case "size_upload":
+            return Long.toString(this.bytesSent);
+        case "size_download":
+            return Long.toString(this.bytesReceived);
+        case "http_code":
+            return Integer.toString(this.statusCode);
+        case "url_effective":
+            return url;
+        case "num_connects":
+            return Integer.toString(this.connects);
+        default:
+            return null;
+        }
+    }
+
+    private String seconds(final long mark) {
+        return String.format("%.6f", (mark - this.start) / 1e9);
+    }
+
+    /**
+     * One line JSON object with the duration of every phase in nanoseconds
+     *
+     * @param url URL of the request
+     * @return
+     */
+    public String toJson(final String url) {
+        return "{\"url\":\"" + url.replace("\\", "\\\\").replace("\"", "\\\"") + "\""
+            + ",\"status\":" + this.statusCode
+            + ",\"reused\":" + this.reused
+            + ",\"resolve_ns\":" + getResolveNanos()
+            + ",\"connect_ns\":" + getConnectNanos()
+            + ",\"tls_ns\":" + getHandshakeNanos()
+            + ",\"write_ns\":" + getWriteNanos()
+            + ",\"ttfb_ns\":" + getFirstByteNanos()
+            + ",\"transfer_ns\":" + getTransferNanos()
+            + ",\"total_ns\":" + getTotalNanos()
+            + ",\"bytes_sent\":" + this.bytesSent
+            + ",\"bytes_received\":" + this.bytesReceived
+            + "}";
+    }
+}
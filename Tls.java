@@ -0,0 +1,67 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.security.NoSuchAlgorithmException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Client side TLS for https requests. Every connection in the process shares
+ * one context, so its session cache lets a repeat handshake with a server
+ * resume the previous session and skip the key exchange and certificate
+ * checks. Sessions are cached per host and port.
+ *
+ * Servers are trusted through the JVM's trust store, which
+ * '-Djavax.net.ssl.trustStore=file' replaces (eg. for a self signed
+ * certificate). The cache holds 'httpc.tls.sessionCacheSize' sessions for
+ * 'httpc.tls.sessionTimeout' seconds.
+ */
+public class Tls {
+    private static final int SESSION_CACHE_SIZE = Integer.getInteger("httpc.tls.sessionCacheSize", 1000);
+    private static final int SESSION_TIMEOUT_SECONDS = Integer.getInteger("httpc.tls.sessionTimeout", 24 * 60 * 60);
+
+    // Created on the first https request, plain HTTP never loads the TLS classes
+    private static SSLSocketFactory factory = null;
+
+    /**
+     * Run the TLS handshake over a connected socket
+     *
+     * @param socket Connected plain socket, closed along with the TLS one
+     * @param host   Name of the server, sent for SNI and checked against its certificate
+     * @param port
+     * @return The socket to exchange the request and response over
+     * @throws IOException If the handshake fails or the certificate isn't trusted
+     */
+    public static SSLSocket handshake(final Socket socket, final String host, final int port) throws IOException {
+        // Created with the server's name and port so its session can be found again
+        final SSLSocket tls = (SSLSocket) getFactory().createSocket(socket, host, port, true);
+
+        final SSLParameters parameters = tls.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        tls.setSSLParameters(parameters);
+
+        tls.startHandshake();
+        return tls;
+    }
+
+    private static synchronized SSLSocketFactory getFactory() throws IOException {
+        if (factory == null) {
+            final SSLContext context;
+            try {
+                context = SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("TLS isn't available", e);
+            }
+
+            final SSLSessionContext sessions = context.getClientSessionContext();
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            factory = context.getSocketFactory();
+        }
+
+        return factory;
+    }
+}
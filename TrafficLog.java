@@ -0,0 +1,372 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append only binary log of requests and their responses, written by '--record'
+ * and read back by 'httpc replay'. The file starts with MAGIC and VERSION (ints),
+ * then holds one record after another, each its length (int) followed by, big
+ * endian:
+ *
+ *   start     long   Wall clock time the request started, nanoseconds since the epoch
+ *   timings   long   Nanoseconds of resolve, connect, TLS, write, first byte, transfer, total
+ *   status    int    Response status
+ *   secure    byte   1 for https
+ *   host      short  Length, then the UTF-8 host name
+ *   port      int
+ *   request   int    Length, then the request exactly as it was sent, body included
+ *   head      int    Length, then the response head
+ *   body      int    Length, then the response body without chunked framing but still
+ *                    in its content encoding (eg. gzipped)
+ *
+ * Records are built in memory and appended with a single write, so requests
+ * recorded by concurrent handlers never interleave. The reader maps the file
+ * and hands out records as views of the mapping, nothing is parsed or copied
+ * until it's used.
+ */
+public class TrafficLog {
+    public static final int MAGIC = 0x48545450; // 'HTTP'
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int TIMINGS = 7;
+    // Records are read through a window of the file this large, or larger for a bigger record
+    private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    // Logs open for recording in this process, one per file so their appends are serialized
+    private static final Map<Path, TrafficLog> OPEN = new HashMap<>();
+    // Commands running in this process, guarded by OPEN
+    private static int commands = 0;
+
+    private final Path file;
+    private final FileChannel channel;
+
+    private TrafficLog(final Path file, final FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * The log recording to a file, created along with the file if needed. It
+     * stays open until no command is running any more, see commandFinished().
+     *
+     * @param file
+     * @return
+     * @throws HttpcException If the file can't be opened or isn't a traffic log
+     */
+    public static TrafficLog forFile(final Path file) {
+        final Path key = file.toAbsolutePath().normalize();
+
+        synchronized (OPEN) {
+            TrafficLog log = OPEN.get(key);
+            if (log != null) {
+                return log;
+            }
+
+            FileChannel channel = null;
+            try {
+                channel = FileChannel.open(key, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+                if (channel.size() == 0) {
+                    channel.write(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip());
+                } else {
+                    checkHeader(FileChannel.open(key, StandardOpenOption.READ), key);
+                }
+
+                log = new TrafficLog(key, channel);
+                OPEN.put(key, log);
+                return log;
+            } catch (IOException | HttpcException e) {
+                closeQuietly(channel);
+                throw e instanceof HttpcException
+                    ? (HttpcException) e
+                    : new HttpcException("Error opening traffic log: " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Mark a command starting, the logs it records to stay open until it finishes
+     */
+    public static void commandStarted() {
+        synchronized (OPEN) {
+            commands++;
+        }
+    }
+
+    /**
+     * Mark a command finished, closing every log once no command is running
+     * any more, so a daemon doesn't hold a file open for every log it ever
+     * recorded to. Logs opened outside a command stay open until then too.
+     */
+    public static void commandFinished() {
+        synchronized (OPEN) {
+            if (--commands > 0) {
+                return;
+            }
+
+            for (TrafficLog log : OPEN.values()) {
+                synchronized (log) {
+                    closeQuietly(log.channel);
+                }
+            }
+            OPEN.clear();
+        }
+    }
+
+    /**
+     * Append one exchange to the log
+     *
+     * @param request  Where it went, and whether over TLS
+     * @param timings  Complete timings of the exchange
+     * @param sent     The request as it was sent
+     * @param head     Response head
+     * @param body     Response body as received
+     * @throws IOException
+     */
+    public void append(final Request request, final Timings timings, final byte[] sent, final String head,
+            final byte[] body) throws IOException {
+        final byte[] host = request.getHost().getBytes(StandardCharsets.UTF_8);
+        final byte[] headBytes = head.getBytes(StandardCharsets.UTF_8);
+        final int length = 8 + TIMINGS * 8 + 4 + 1 + 2 + host.length + 4
+            + 4 + sent.length + 4 + headBytes.length + 4 + body.length;
+
+        // The request started this long before it completed, which is now
+        final Instant now = Instant.now();
+        final long start = now.getEpochSecond() * 1_000_000_000L + now.getNano() - timings.getTotalNanos();
+
+        final ByteBuffer record = ByteBuffer.allocate(4 + length)
+            .putInt(length)
+            .putLong(start)
+            .putLong(timings.getResolveNanos())
+            .putLong(timings.getConnectNanos())
+            .putLong(timings.getHandshakeNanos())
+            .putLong(timings.getWriteNanos())
+            .putLong(timings.getFirstByteNanos())
+            .putLong(timings.getTransferNanos())
+            .putLong(timings.getTotalNanos())
+            .putInt(timings.getStatusCode())
+            .put((byte) (request.isSecure() ? 1 : 0))
+            .putShort((short) host.length).put(host)
+            .putInt(request.getPort())
+            .putInt(sent.length).put(sent)
+            .putInt(headBytes.length).put(headBytes)
+            .putInt(body.length).put(body)
+            .flip();
+
+        synchronized (this) {
+            while (record.hasRemaining()) {
+                this.channel.write(record);
+            }
+        }
+    }
+
+    public Path getFile() {
+        return this.file;
+    }
+
+    private static void closeQuietly(final FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing was written through it
+        }
+    }
+
+    private static void checkHeader(final FileChannel channel, final Path file) throws IOException {
+        try (
+            FileChannel c = channel;
+        ) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && c.read(header) >= 0) {
+                // Keep reading until the header is in
+            }
+            header.flip();
+
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                throw new HttpcException("Not a traffic log: " + file);
+            }
+            if (header.getInt() != VERSION) {
+                throw new HttpcException("Unsupported traffic log version: " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads a log's records in order through a memory mapping of the file
+     */
+    public static class Reader implements AutoCloseable {
+        private final Path file;
+        private final FileChannel channel;
+        private final long size;
+        private MappedByteBuffer window;
+        private long windowStart;
+
+        /**
+         * @param file
+         * @throws HttpcException If the file can't be read or isn't a traffic log
+         */
+        public Reader(final Path file) {
+            this.file = file;
+
+            try {
+                checkHeader(FileChannel.open(file, StandardOpenOption.READ), file);
+                this.channel = FileChannel.open(file, StandardOpenOption.READ);
+                // Only what was there when we started, a recording may still be appending
+                this.size = this.channel.size();
+                map(HEADER_SIZE, 0);
+            } catch (IOException e) {
+                throw new HttpcException("Error reading traffic log: " + file, e);
+            }
+        }
+
+        /**
+         * @return The next record, or null at the end of the log
+         * @throws HttpcException If the log is damaged
+         */
+        public Record next() {
+            try {
+                if (this.window.remaining() < 4) {
+                    map(this.windowStart + this.window.position(), 4);
+                    if (this.window.remaining() < 4) {
+                        return null;
+                    }
+                }
+
+                final int length = this.window.getInt(this.window.position());
+                if (this.window.remaining() < 4 + length) {
+                    map(this.windowStart + this.window.position(), 4 + length);
+                }
+
+                // A record cut short by a recording that died mid write ends the log
+                if (length < 0 || this.window.remaining() < 4 + length) {
+                    return null;
+                }
+
+                final ByteBuffer record = this.window.slice(this.window.position() + 4, length);
+                this.window.position(this.window.position() + 4 + length);
+                return new Record(record);
+            } catch (IOException e) {
+                throw new HttpcException("Error reading traffic log: " + this.file, e);
+            } catch (RuntimeException e) {
+                throw new HttpcException("Damaged traffic log: " + this.file, e);
+            }
+        }
+
+        /**
+         * Map the part of the file from a position on, at least the given length of it if the file has that much
+         */
+        private void map(final long position, final long length) throws IOException {
+            final long mapped = Math.min(this.size - position, Math.max(WINDOW_SIZE, length));
+            this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, position, Math.max(0, mapped));
+            this.windowStart = position;
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(this.channel);
+        }
+    }
+
+    /**
+     * One exchange, its variable length parts are views of the log
+     */
+    public static class Record {
+        private final long start;
+        private final long[] timings = new long[TIMINGS];
+        private final int status;
+        private final boolean secure;
+        private final String host;
+        private final int port;
+        private final ByteBuffer request;
+        private final ByteBuffer head;
+        private final ByteBuffer body;
+
+        private Record(final ByteBuffer record) {
+            this.start = record.getLong();
+            for (int i = 0; i < TIMINGS; i++) {
+                this.timings[i] = record.getLong();
+            }
+            this.status = record.getInt();
+            this.secure = record.get() == 1;
+
+            final byte[] host = new byte[record.getShort() & 0xffff];
+            record.get(host);
+            this.host = new String(host, StandardCharsets.UTF_8);
+            this.port = record.getInt();
+
+            this.request = slice(record);
+            this.head = slice(record);
+            this.body = slice(record);
+        }
+
+        private static ByteBuffer slice(final ByteBuffer record) {
+            final int length = record.getInt();
+            final ByteBuffer part = record.slice(record.position(), length);
+            record.position(record.position() + length);
+            return part;
+        }
+
+        /**
+         * When the request started, nanoseconds since the epoch
+         * @return
+         */
+        public long getStart() {
+            return this.start;
+        }
+
+        /**
+         * Total time the exchange took when it was recorded
+         * @return
+         */
+        public long getTotalNanos() {
+            return this.timings[TIMINGS - 1];
+        }
+
+        public int getStatus() {
+            return this.status;
+        }
+
+        public boolean isSecure() {
+            return this.secure;
+        }
+
+        public String getHost() {
+            return this.host;
+        }
+
+        public int getPort() {
+            return this.port;
+        }
+
+        /**
+         * The request as it was sent, body included
+         * @return A read only view, positioned at its start
+         */
+        public ByteBuffer getRequest() {
+            return this.request.duplicate();
+        }
+
+        public String getHead() {
+            return StandardCharsets.UTF_8.decode(this.head.duplicate()).toString();
+        }
+
+        /**
+         * @return A read only view of the body as it came over the wire
+         */
+        public ByteBuffer getBody() {
+            return this.body.duplicate();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/**
+ * Raised when a command is invalid (or asks for help), carrying the help text to
+ * show for it along with the reason, if there's a more specific one
+ */
+public class UsageException extends HttpcException {
+    private static final long serialVersionUID = 1L;
+
+    private final String reason;
+    private final String help;
+
+    public UsageException(final String reason, final String help) {
+        super(reason != null ? reason : "Invalid command");
+        this.reason = reason;
+        this.help = help;
+    }
+
+    /**
+     * @return Why the command was rejected, or null when only the help text applies
+     */
+    public String getReason() {
+        return this.reason;
+    }
+
+    public String getHelp() {
+        return this.help;
+    }
+}
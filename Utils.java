@@ -1,22 +1,42 @@
 import constants.Method;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
 
 import constants.Messages;;
 
 public class Utils {
+    // sleepUntil() spins rather than parks for this long before its deadline
+    private static final long SPIN_NANOS = 100_000;
+
+    // Directory relative file arguments are resolved against, null for the process's own
+    private static volatile Path workingDirectory = null;
+
+    /**
+     * Abandon the current command and show the general help text. Httpc prints
+     * it and exits, while multi-request runs report just that command as invalid.
+     */
     public static void printHelpAndExit() {
-        System.out.println(Messages.HELP_DEFAULT);
-        System.exit(0);
+        throw new UsageException(null, Messages.HELP_DEFAULT);
     }
 
     private static void printHelpAndExit(final String message) {
-        System.out.println(message);
-        System.exit(0);
+        throw new UsageException(null, message);
     }
 
     public static void printHelpAndExit(final Method method) {
@@ -28,6 +48,18 @@ public class Utils {
             printHelpAndExit(Messages.HELP_GET);
         }
 
+        if (method == Method.BATCH) {
+            printHelpAndExit(Messages.HELP_BATCH);
+        }
+
+        if (method == Method.BENCH) {
+            printHelpAndExit(Messages.HELP_BENCH);
+        }
+
+        if (method == Method.REPLAY) {
+            printHelpAndExit(Messages.HELP_REPLAY);
+        }
+
         printHelpAndExit(Messages.HELP_POST);
     }
 
@@ -69,23 +101,154 @@ public class Utils {
             return sb.toString();
 
         } catch (Exception e) {
-            printHelpAndExit();
+            throw new UsageException("Error reading file: " + filePath, Messages.HELP_DEFAULT);
+        }
+    }
+
+    /**
+     * Locate a file given on the command line, relative to the class directory
+     * like extractFileContents, or as a regular path if it isn't found there
+     *
+     * @param filePath
+     * @return Path to a readable file
+     */
+    public static Path resolveFile(final String filePath) {
+        Path path = null;
+
+        try {
+            URL resource = Httpc.class.getResource(filePath);
+            path = resource != null ? Paths.get(resource.toURI()) : resolvePath(filePath);
+        } catch (Exception e) {
+            throw new UsageException("Error reading file: " + filePath, Messages.HELP_DEFAULT);
+        }
+
+        if (!Files.isRegularFile(path) || !Files.isReadable(path)) {
+            throw new UsageException("Error reading file: " + filePath, Messages.HELP_DEFAULT);
         }
 
-        // Technically unreachable
-        return "";
+        return path;
     }
 
-    public static void outputToFile(String fileName, String output) {
-        if (!fileName.contains(".txt"))
-            fileName += ".txt";
+    /**
+     * Gzip a file into a temporary file, deleted when the JVM exits
+     *
+     * @param file
+     * @return Path of the compressed copy
+     * @throws IOException
+     */
+    public static Path gzipToTempFile(final Path file) throws IOException {
+        final Path compressed = Files.createTempFile("httpc-body", ".gz");
+        compressed.toFile().deleteOnExit();
 
         try (
-            PrintWriter writer = new PrintWriter(fileName); 
+            OutputStream out = new GZIPOutputStream(Files.newOutputStream(compressed), 64 * 1024);
         ) {
-            writer.println(output);
-        } catch (Exception e) {
-            System.out.println("Error writing to file: " + fileName);
+            Files.copy(file, out);
+        }
+
+        return compressed;
+    }
+
+    /**
+     * Gzip an inline body
+     *
+     * @param body
+     * @return
+     */
+    public static byte[] gzip(final byte[] body) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2 + 32);
+
+        try (
+            OutputStream out = new GZIPOutputStream(compressed);
+        ) {
+            out.write(body);
+        } catch (IOException e) {
+            // Writing to memory doesn't fail
+            throw new IllegalStateException(e);
+        }
+
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Open a buffered stream to the given output file, keeping the '.txt'
+     * naming convention of our output files
+     *
+     * @param fileName
+     * @return
+     * @throws FileNotFoundException
+     */
+    public static OutputStream openOutputFile(final String fileName) throws FileNotFoundException {
+        return new BufferedOutputStream(new FileOutputStream(resolvePath(outputFileName(fileName)).toFile()));
+    }
+
+    /**
+     * Name of the file actually written for an output file argument
+     *
+     * @param fileName
+     * @return
+     */
+    public static String outputFileName(final String fileName) {
+        return fileName.contains(".txt") ? fileName : fileName + ".txt";
+    }
+
+    /**
+     * Path of a file argument, relative ones being resolved against the working directory
+     *
+     * @param fileName
+     * @return
+     */
+    public static Path resolvePath(final String fileName) {
+        final Path base = workingDirectory;
+        return base != null ? base.resolve(fileName) : Paths.get(fileName);
+    }
+
+    /**
+     * Resolve relative file arguments against another directory than the
+     * process's own, eg. the directory of the client a daemon runs a command for
+     *
+     * @param directory Absolute directory, or null for the process's own
+     */
+    public static void setWorkingDirectory(final Path directory) {
+        workingDirectory = directory;
+    }
+
+    /**
+     * Wait until System.nanoTime() reaches a deadline, to within microseconds.
+     * Parking alone overshoots, so the last stretch is spun.
+     *
+     * @param deadline
+     * @return False if interrupted before the deadline
+     */
+    public static boolean sleepUntil(final long deadline) {
+        long wait;
+
+        while ((wait = deadline - System.nanoTime()) > 0) {
+            if (Thread.interrupted()) {
+                return false;
+            }
+            if (wait > SPIN_NANOS) {
+                LockSupport.parkNanos(wait - SPIN_NANOS);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Use a virtual thread per request when the runtime supports them (Java 21+),
+     * so thousands of requests can wait on the network without a platform thread
+     * each. Older runtimes fall back to a cached pool, bounded by the caller.
+     */
+    public static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor")
+                .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
         }
     }
-}
\ No newline at end of file
+}
@@ -1,7 +1,13 @@
 package constants;
 
 public enum Argument {
-    VERBOSE("-v"), HEADER("-h"), INLINE_DATA("-d"), FILE_DATA("-f"), OUTPUT_FILE("-o");
+    VERBOSE("-v"), HEADER("-h"), INLINE_DATA("-d"), FILE_DATA("-f"), OUTPUT_FILE("-o"), WRITE_OUT("-w"),
+    HTTP_1_1("--http1.1"), CONCURRENCY("--concurrency"), REQUESTS("--requests"), DURATION("--duration"),
+    WARMUP("--warmup"), RESOLVE("--resolve"), CACHE("--cache"), NIO("--nio"), PIPELINE("--pipeline"),
+    COMPRESSED("--compressed"), COMPRESS_BODY("--compress-body"), PARALLEL("--parallel"),
+    TIMINGS("--timings"), METRICS("--metrics"), DAEMON("--daemon"), RATE("--rate"), RAMP("--ramp"),
+    STEP("--step"), RECORD("--record"), FAST("--fast"), TARGET("--target"),
+    ADAPTIVE("--adaptive"), MAX_QUEUE("--max-queue"), RETRIES("--retries");
 
     private final String arg;
 
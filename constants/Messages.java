@@ -4,13 +4,29 @@ public class Messages {
     public static final String HELP_DEFAULT = "\n" + "httpc is a curl-like application but supports HTTP protocol only." + "\n"
             + "Usage:\n" + "\thttpc command [arguments]" + "\n" + "The commands are:" + "\n\t"
             + "get\texecutes a HTTP GET request and prints the response." + "\n\t"
-            + "post\texecutes a HTTP POST request and prints the response.\n" + "\thelp\tprints this screen.\n";
+            + "post\texecutes a HTTP POST request and prints the response.\n"
+            + "\tbatch\texecutes every httpc command in a file concurrently.\n"
+            + "\tbench\trepeatedly executes a httpc command and reports throughput and latency.\n"
+            + "\treplay\tsends the requests of a traffic log recorded with --record again.\n"
+            + "\thelp\tprints this screen.\n"
+            + "\t--daemon [socket]\tkeeps httpc running to execute the commands DaemonClient forwards to it.\n";
+
+    private static final String RECORD_HELP = "--record\tfile Append the request and its response to a binary traffic log for httpc replay.";
 
     public static final String HELP_GET = "\n" + "usage: httpc get [-v] [-h key:value] URL"
             + "\n\nGet executes a HTTP GET request for a given URL." + "\n"
             + "-v\tPrints the detail of the response such as protocol, status,and headers." + "\n"
             + "-h\tkey:value Associates headers to HTTP Request with the format 'key:value'." + "\n"
-            + "-o\tOutput the response contents into given filename.";
+            + "-o\tOutput the response contents into given filename." + "\n"
+            + "--http1.1\tUse HTTP/1.1 and reuse pooled keep-alive connections." + "\n"
+            + "--nio\tSend through the non-blocking engine, without connection reuse or caching." + "\n"
+            + "--compressed\tRequest a gzip or deflate compressed response and decode it as it arrives." + "\n"
+            + "-w\tformat Print timings once the request completes, eg. '%{time_starttransfer} %{time_total}\\n'." + "\n"
+            + "--timings\tPrint the time of every phase and the bytes sent and received as a JSON line to stderr." + "\n"
+            + "--resolve\thost:port:address Connect to the given address for host and port instead of using DNS." + "\n"
+            + "--cache\tdirectory Serve fresh responses from an on-disk cache, revalidating stale ones." + "\n"
+            + "--parallel\tn Download into the -o file with n ranged requests at once, resuming a partial download." + "\n"
+            + RECORD_HELP;
 
     public static final String HELP_POST = "\n" + "usage: httpc post [-v] [-h key:value] [-d inline-data] [-f file] URL"
             + "\n\n" + "Post executes a HTTP POST request for a given URL with inline data or from file." + "\n"
@@ -18,5 +34,53 @@ public class Messages {
             + "-h\tkey:value Associates headers to HTTP Request with the format 'key:value'." + "\n"
             + "-d\tstring Associates an inline data to the body HTTP POST request." + "\n"
             + "-f\tfile Associates the content of a file to the body HTTP POST request." + "\n"
-            + "-o\tOutput the response contents into given filename.";
+            + "-o\tOutput the response contents into given filename." + "\n"
+            + "--http1.1\tUse HTTP/1.1 and reuse pooled keep-alive connections." + "\n"
+            + "--nio\tSend through the non-blocking engine, without connection reuse or caching." + "\n"
+            + "--compressed\tRequest a gzip or deflate compressed response and decode it as it arrives." + "\n"
+            + "--compress-body\tGzip the -d or -f body and send it with Content-Encoding: gzip." + "\n"
+            + "-w\tformat Print timings once the request completes, eg. '%{time_starttransfer} %{time_total}\\n'." + "\n"
+            + "--timings\tPrint the time of every phase and the bytes sent and received as a JSON line to stderr." + "\n"
+            + "--resolve\thost:port:address Connect to the given address for host and port instead of using DNS." + "\n"
+            + RECORD_HELP;
+
+    private static final String METRICS_HELP = "--metrics\tfile Write request metrics to file in the Prometheus text format every 10 seconds."
+            + "\n" + "\t\tMetrics are also exposed over JMX as httpc:type=Metrics.";
+
+    public static final String HELP_BATCH = "\n"
+            + "usage: httpc batch [--concurrency n] [--pipeline n] [--adaptive [--max-queue n]] [--retries n]" + "\n"
+            + "                   [--metrics file] file"
+            + "\n\n" + "Batch executes every httpc command in a file concurrently, one command per line." + "\n"
+            + "Lines may start with 'java Httpc' or 'httpc', blank lines and lines starting with '#' are skipped." + "\n"
+            + "Responses are written to each command's -o file, or to a file numbered after its line." + "\n"
+            + "--concurrency\tn Maximum number of requests in flight at once (default 64)." + "\n"
+            + "--pipeline\tn Write up to n GETs to the same host back to back on one HTTP/1.1 connection." + "\n"
+            + "--adaptive\tAdapt the requests in flight to each host to how it copes: more while it answers quickly," + "\n"
+            + "\t\tfewer once it slows down, fails or answers 429/503. Doesn't apply to --pipeline or --nio requests." + "\n"
+            + "--max-queue\tn Maximum number of requests waiting for one host, more fail (default the concurrency)." + "\n"
+            + "--retries\tn Send a GET again up to n times if it fails before a response or gets a 429/503 (default 0)." + "\n"
+            + METRICS_HELP;
+
+    public static final String HELP_BENCH = "\n"
+            + "usage: httpc bench [--concurrency n] [--requests n | --duration seconds] [--warmup seconds]" + "\n"
+            + "                   [--rate r[,r...] [--ramp seconds] [--step seconds]] [--metrics file] command"
+            + "\n\n" + "Bench repeatedly executes a httpc get or post command and reports throughput and latency percentiles." + "\n"
+            + "Responses are discarded, every worker sends its next request as soon as the last one completes." + "\n"
+            + "With a rate, requests are sent on schedule instead and latency counts from when each was due," + "\n"
+            + "so time spent waiting behind a slow response shows up in the percentiles." + "\n"
+            + "--concurrency\tn Number of requests in flight at once (default 8), the most in flight with a rate." + "\n"
+            + "--requests\tn Number of requests to measure." + "\n"
+            + "--duration\tseconds How long to measure for (default 10)." + "\n"
+            + "--warmup\tseconds How long to send unmeasured requests for first (default 0)." + "\n"
+            + "--rate\tr Requests per second to send, several rates are stepped through in order." + "\n"
+            + "--ramp\tseconds Time to climb from 0 to the first rate (default 0)." + "\n"
+            + "--step\tseconds How long each rate but the last holds, needed with several rates." + "\n"
+            + METRICS_HELP;
+
+    public static final String HELP_REPLAY = "\n" + "usage: httpc replay [--fast] [--concurrency n] [--target url] log"
+            + "\n\n" + "Replay sends the requests of a traffic log recorded with --record again, byte for byte." + "\n"
+            + "Requests go out at the pace they were recorded at, latency counts from when each was due." + "\n"
+            + "--fast\tSend as fast as the concurrency allows instead." + "\n"
+            + "--concurrency\tn Maximum number of requests in flight at once (default 64)." + "\n"
+            + "--target\turl Connect to this scheme, host and port instead of the recorded ones, eg. 'http://localhost:8080'.";
 }
\ No newline at end of file
@@ -1,7 +1,7 @@
 package constants;
 
 public enum Method {
-    GET("GET"), POST("POST"), HELP("HELP");
+    GET("GET"), POST("POST"), HELP("HELP"), BATCH("BATCH"), BENCH("BENCH"), REPLAY("REPLAY");
 
     private final String method;
 